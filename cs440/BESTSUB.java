@@ -344,6 +344,8 @@ public class TetrisQAgent
      * (unless you have a long hole waiting for an I-block). When you design a reward
      * signal that is less sparse, you should see your model optimize this reward over time.
      */
+    // kept for reference, the live agent trains with these weights under -Dtetris.reward=bestsub
+    // (TetrisQAgent.RewardWeights.BESTSUB), computed from its one-pass BoardProfile
     @Override
     public double getReward(final GameView game) {
         double score = game.getScoreThisTurn() * 10;
@@ -0,0 +1,33 @@
+package bench;
+
+// SYSTEM IMPORTS
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH entry point for the agents' decision hot paths. Always attaches the GC profiler, so every result comes with
+ * its allocation rate (gc.alloc.rate.norm = bytes allocated per operation).
+ *
+ * JMH is not shipped in lib/. Put jmh-core and jmh-generator-annprocess (and their jopt-simple/commons-math3
+ * dependencies) in lib/jmh/, then from cs440/:
+ *
+ *     javac -cp "lib/*:lib/jmh/*" -d bench/out @battleship.srcs @tetris.srcs @pitfall.srcs @bench.srcs
+ *     java -cp "lib/*:lib/jmh/*:bench/out" bench.Benchmarks [regex] [other JMH options]
+ *
+ * The fixtures are loaded with paths relative to cs440/, so run it from there.
+ */
+public class Benchmarks {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+        Options options = new OptionsBuilder()
+            .parent(cmdOptions)
+            .include(cmdOptions.getIncludes().isEmpty() ? "bench\\..*" : String.join("|", cmdOptions.getIncludes()))
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,160 @@
+package bench.labs.pitfall;
+
+// SYSTEM IMPORTS
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// JAVA PROJECT IMPORTS
+import edu.bu.labs.pitfall.Difficulty;
+import edu.bu.labs.pitfall.utilities.Coordinate;
+import src.labs.pitfall.agents.BayesianAgent.PitfallBayesianNetwork;
+
+/**
+ * PitfallBayesianNetwork.getNextCoordinateToExplore on the easy, medium and hard maps in data/labs/pitfall.
+ *
+ * The maps only fix the board size (the game agent rolls the pits at runtime), so every snapshot is rebuilt the
+ * same way: pits are rolled with Difficulty.getPitProbability and a fixed seed, then a BFS from the agent's start
+ * square reveals the first REVEAL_FRACTION of the safe squares it can reach. Revealed squares become breeze/safe
+ * evidence, the hidden squares next to them the frontier, and every other hidden square "other".
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BayesianAgentBenchmark {
+
+    public static final long SEED = 12345;
+    public static final double REVEAL_FRACTION = 0.25;
+
+    @Param({"easy/10x10", "medium/16x16", "hard/30x16"})
+    public String map;
+
+    private PitfallBayesianNetwork network;
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        // getNextCoordinateToExplore prints its pick every call
+        this.stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        Difficulty difficulty = Difficulty.valueOf(this.map.substring(0, this.map.indexOf('/')).toUpperCase());
+        this.network = buildSnapshot("data/labs/pitfall/" + this.map + "Map.xml", difficulty, SEED,
+                                     REVEAL_FRACTION);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(this.stdout);
+    }
+
+    @Benchmark
+    public Coordinate getNextCoordinateToExplore() {
+        return this.network.getNextCoordinateToExplore();
+    }
+
+    public static PitfallBayesianNetwork buildSnapshot(String mapFile, Difficulty difficulty, long seed,
+                                                       double revealFraction) throws Exception {
+        String xml = new String(Files.readAllBytes(Paths.get(mapFile)));
+        int xExtent = parseExtent(xml, "xExtent");
+        int yExtent = parseExtent(xml, "yExtent");
+
+        // playable squares are [1, extent - 2] in both directions, same as PitfallBayesianNetwork.isPlayable
+        Random random = new Random(seed);
+        boolean[][] isPit = new boolean[xExtent][yExtent];
+        int srcX = 1, srcY = yExtent - 2;
+        int dstX = xExtent - 2, dstY = 1;
+        for (int x = 1; x <= xExtent - 2; x++) {
+            for (int y = 1; y <= yExtent - 2; y++) {
+                boolean isEndpoint = (x == srcX && y == srcY) || (x == dstX && y == dstY);
+                isPit[x][y] = !isEndpoint && random.nextDouble() < Difficulty.getPitProbability(difficulty);
+            }
+        }
+
+        int numSafe = 0;
+        for (int x = 1; x <= xExtent - 2; x++) {
+            for (int y = 1; y <= yExtent - 2; y++) {
+                numSafe += isPit[x][y] ? 0 : 1;
+            }
+        }
+        int numToReveal = Math.max(1, (int) (numSafe * revealFraction));
+
+        boolean[][] revealed = new boolean[xExtent][yExtent];
+        Deque<int[]> queue = new ArrayDeque<int[]>();
+        queue.add(new int[]{srcX, srcY});
+        revealed[srcX][srcY] = true;
+        int numRevealed = 0;
+        int[][] dirs = new int[][]{{-1, 0}, {+1, 0}, {0, -1}, {0, +1}};
+        while (!queue.isEmpty() && numRevealed < numToReveal) {
+            int[] square = queue.poll();
+            numRevealed++;
+            for (int[] dir : dirs) {
+                int x = square[0] + dir[0];
+                int y = square[1] + dir[1];
+                if (isPlayable(x, y, xExtent, yExtent) && !revealed[x][y] && !isPit[x][y]) {
+                    revealed[x][y] = true;
+                    queue.add(new int[]{x, y});
+                }
+            }
+        }
+        // squares still queued were never "attacked"
+        for (int[] square : queue) {
+            revealed[square[0]][square[1]] = false;
+        }
+
+        // every playable square is either revealed or hidden, so the network's frontier (hidden squares next to a
+        // square that isn't) is the hidden squares next to a revealed one
+        PitfallBayesianNetwork network = new PitfallBayesianNetwork(difficulty, xExtent, yExtent);
+        for (int x = 1; x <= xExtent - 2; x++) {
+            for (int y = 1; y <= yExtent - 2; y++) {
+                if (revealed[x][y]) {
+                    boolean isBreeze = false;
+                    for (int[] dir : dirs) {
+                        isBreeze |= isPit[x + dir[0]][y + dir[1]];
+                    }
+                    network.setEvidence(network.getIdx(x, y), isBreeze);
+                } else {
+                    network.setHidden(network.getIdx(x, y));
+                }
+            }
+        }
+        network.updateFrontier();
+        return network;
+    }
+
+    private static boolean isPlayable(int x, int y, int xExtent, int yExtent) {
+        return x >= 1 && x <= xExtent - 2 && y >= 1 && y <= yExtent - 2;
+    }
+
+    private static int parseExtent(String xml, String attribute) {
+        Matcher matcher = Pattern.compile(attribute + "=\"(\\d+)\"").matcher(xml);
+        if (!matcher.find()) {
+            throw new IllegalArgumentException("map is missing " + attribute);
+        }
+        return Integer.parseInt(matcher.group(1));
+    }
+}
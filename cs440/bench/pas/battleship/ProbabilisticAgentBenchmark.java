@@ -0,0 +1,203 @@
+package bench.pas.battleship;
+
+// SYSTEM IMPORTS
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// JAVA PROJECT IMPORTS
+import edu.bu.battleship.game.Constants;
+import edu.bu.battleship.game.Difficulty;
+import edu.bu.battleship.game.EnemyBoard.Outcome;
+import edu.bu.battleship.game.Game.GameView;
+import edu.bu.battleship.game.PlayerView;
+import edu.bu.battleship.game.ships.Ship;
+import edu.bu.battleship.game.ships.Ship.ShipType;
+import edu.bu.battleship.utils.Coordinate;
+import src.pas.battleship.agents.ProbabilisticAgent;
+
+/**
+ * ProbabilisticAgent.makeMove on fixed 30x30 (HARD) board snapshots from bench/data/battleship.
+ *
+ * cold: a fresh agent, so the move pays for the full PlacementDensity rebuild (what the first move of every game
+ *       costs, and what every move cost before the density became incremental).
+ * warm: an agent that has already moved on the snapshot, shown the snapshot with its next NUM_WARM_SHOTS shots
+ *       landing as MISSes one at a time, so every move pays for the incremental update (every placement through
+ *       the cell is blocked) and the argmax. The agent is reset and replays its first move before every
+ *       invocation, outside the measurement, and the score is per move.
+ *
+ * Only DENSITY targeting is measured: MONTE_CARLO runs until its time budget by design.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProbabilisticAgentBenchmark {
+
+    // warm moves per invocation, enough that an invocation (~100 us) dwarfs the timestamps Level.Invocation adds
+    public static final int NUM_WARM_SHOTS = 32;
+
+    @Param({"early", "mid", "late"})
+    public String snapshot;
+
+    private GameView game;
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        // the constructor logs at INFO (and every shot at DEBUG), keep that out of the measurement
+        this.stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        this.game = loadSnapshot(this.getPath());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(this.stdout);
+    }
+
+    public String getPath() {
+        return "bench/data/battleship/" + this.snapshot + ".txt";
+    }
+
+    public GameView getGame() {
+        return this.game;
+    }
+
+    /**
+     * The warm agent and the views it is shown. Its own state so that only warm() pays for the per-invocation reset.
+     */
+    @State(Scope.Thread)
+    public static class Warm {
+
+        private GameView game;
+        private GameView[] afterShots;
+        private ProbabilisticAgent agent;
+
+        @Setup(Level.Trial)
+        public void setup(ProbabilisticAgentBenchmark benchmark) throws Exception {
+            this.game = benchmark.getGame();
+            this.agent = new ProbabilisticAgent("warm");
+
+            // the argmax is deterministic, so the replayed moves are these shots again
+            List<Coordinate> shots = new ArrayList<Coordinate>();
+            shots.add(this.agent.makeMove(this.game));
+            this.afterShots = new GameView[NUM_WARM_SHOTS];
+            for (int i = 0; i < NUM_WARM_SHOTS; i++) {
+                this.afterShots[i] = loadSnapshot(benchmark.getPath(), shots, Outcome.MISS);
+                shots.add(this.agent.makeMove(this.afterShots[i]));
+            }
+        }
+
+        @Setup(Level.Invocation)
+        public void replayFirstShot() {
+            // observe() can't undo a MISS, so start the agent's game over (the density is rebuilt in place)
+            this.agent.afterGameEnds(this.game);
+            this.agent.makeMove(this.game);
+        }
+    }
+
+    @Benchmark
+    public Coordinate cold() {
+        return new ProbabilisticAgent("cold").makeMove(this.game);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_WARM_SHOTS)
+    public void warm(Warm warm, Blackhole bh) {
+        for (GameView afterShot : warm.afterShots) {
+            bh.consume(warm.agent.makeMove(afterShot));
+        }
+    }
+
+    /**
+     * Snapshot format: leading '#' comment lines, then "rows cols", then "SHIP_TYPE=numRemaining ...", then one
+     * line per row with '.' unknown, 'X' hit, 'o' miss and '#' sunk.
+     */
+    public static GameView loadSnapshot(String path) throws Exception {
+        return loadSnapshot(path, Collections.<Coordinate>emptyList(), null);
+    }
+
+    /**
+     * The snapshot with the cells at shots set to outcome.
+     */
+    public static GameView loadSnapshot(String path, List<Coordinate> shots, Outcome outcome) throws Exception {
+        List<String> lines = Files.readAllLines(Paths.get(path));
+        while (lines.get(0).startsWith("#")) {
+            lines.remove(0);    // header comments only, '#' is also a sunk cell in the grid
+        }
+
+        String[] dims = lines.get(0).trim().split("\\s+");
+        int rows = Integer.parseInt(dims[0]);
+        int columns = Integer.parseInt(dims[1]);
+
+        Map<ShipType, Integer> numRemaining = new HashMap<ShipType, Integer>();
+        for (String entry : lines.get(1).trim().split("\\s+")) {
+            String[] kv = entry.split("=");
+            numRemaining.put(ShipType.valueOf(kv[0]), Integer.parseInt(kv[1]));
+        }
+
+        Constants constants = null;
+        for (Difficulty difficulty : Difficulty.values()) {
+            Constants c = new Constants(difficulty);
+            if (c.getNumRows() == rows && c.getNumCols() == columns) {
+                constants = c;
+            }
+        }
+        if (constants == null) {
+            throw new IllegalArgumentException("no Difficulty has a " + rows + "x" + columns + " board");
+        }
+
+        long timeLeftInMS = Long.MAX_VALUE / 4;
+        PlayerView view = new PlayerView(new HashMap<Integer, Ship>(), numRemaining, rows, columns, timeLeftInMS);
+        for (int row = 0; row < rows; row++) {
+            String line = lines.get(2 + row);
+            for (int col = 0; col < columns; col++) {
+                view.getEnemyBoard().setOutcome(new Coordinate(row, col), parseOutcome(line.charAt(col)));
+            }
+        }
+        for (Coordinate shot : shots) {
+            view.getEnemyBoard().setOutcome(shot, outcome);
+        }
+        return new GameView(view, constants, timeLeftInMS);
+    }
+
+    private static Outcome parseOutcome(char c) {
+        switch (c) {
+            case 'X':
+                return Outcome.HIT;
+            case 'o':
+                return Outcome.MISS;
+            case '#':
+                return Outcome.SUNK;
+            default:
+                return Outcome.UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package bench.pas.tetris;
+
+// SYSTEM IMPORTS
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.argparse4j.inf.Namespace;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// JAVA PROJECT IMPORTS
+import edu.bu.tetris.agents.Agent;
+import edu.bu.tetris.game.Game;
+import edu.bu.tetris.game.Game.GameView;
+import edu.bu.tetris.game.minos.Mino;
+import edu.bu.tetris.linalg.Matrix;
+import src.pas.tetris.InferenceQFunction;
+import src.pas.tetris.InferenceQFunction.Precision;
+import src.pas.tetris.agents.TetrisQAgent;
+
+/**
+ * The argmax over every candidate of the TetrisQAgentBenchmark snapshot, all candidates stacked into one batch:
+ * through the double precision Sequential (DOUBLE), or through an InferenceQFunction export of it (FLOAT).
+ *
+ * The main method is the regression check: it collects every state of numGames greedy fixed-seed games played by
+ * the model and counts, for every precision, the states where the export picks a different action than the
+ * Sequential. It exits non-zero if any state disagrees at the precision being checked (FLOAT by default).
+ *
+ *     java -cp "lib/*:lib/jmh/*:bench/out" bench.pas.tetris.InferenceQFunctionBenchmark \
+ *         [modelFile] [numGames] [float]
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InferenceQFunctionBenchmark {
+
+    public static final int NUM_MOVES = 40;
+    public static final int NUM_GAMES = 20;
+
+    @Param({"DOUBLE", "FLOAT"})
+    public String precision;
+
+    private TetrisQAgent agent;
+    private InferenceQFunction inferenceQFunction;
+    private Matrix batch;
+    private int numRows;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.agent = TetrisQAgentBenchmark.loadAgent(TetrisQAgentBenchmark.MODEL_FILE);
+        if (!"DOUBLE".equals(this.precision)) {
+            this.inferenceQFunction = InferenceQFunction.export(this.agent.getQFunction(),
+                                                                Precision.valueOf(this.precision));
+        }
+
+        GameView game = TetrisQAgentBenchmark.replayGame(TetrisQAgentBenchmark.SEED, NUM_MOVES);
+        this.batch = getInputs(this.agent, game, game.getFinalMinoPositions());
+        this.numRows = this.batch.getShape().getNumRows();
+    }
+
+    @Benchmark
+    public int argmax() throws Exception {
+        if (this.inferenceQFunction != null) {
+            return this.inferenceQFunction.argmax(this.batch, this.numRows);
+        }
+        return argmax(this.agent.getQFunction().forward(this.batch));
+    }
+
+    public static Matrix getInputs(TetrisQAgent agent, GameView game, List<Mino> positions) throws Exception {
+        Matrix inputs = null;
+        for (int rowIdx = 0; rowIdx < positions.size(); rowIdx++) {
+            Matrix row = agent.getQFunctionInput(game, positions.get(rowIdx));
+            if (inputs == null) {
+                inputs = Matrix.zeros(positions.size(), row.getShape().getNumCols());
+            }
+            inputs.copySlice(rowIdx, rowIdx + 1, 0, row.getShape().getNumCols(), row);
+        }
+        return inputs;
+    }
+
+    public static int argmax(Matrix qValues) {
+        int best = 0;
+        for (int rowIdx = 1; rowIdx < qValues.getShape().getNumRows(); rowIdx++) {
+            if (qValues.get(rowIdx, 0) > qValues.get(best, 0)) {
+                best = rowIdx;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Candidate inputs of every state the double precision agent reaches in numGames greedy games.
+     */
+    public static List<Matrix> collectStates(final TetrisQAgent agent, int numGames) {
+        final List<Matrix> states = new ArrayList<Matrix>();
+        Agent recorder = new Agent("recorder") {
+            @Override
+            public void initialize(Namespace ns) {}
+
+            @Override
+            public Mino makeMove(final GameView game) {
+                try {
+                    states.add(getInputs(agent, game, game.getFinalMinoPositions()));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                return agent.getBestActionAndQValue(game).getFirst();
+            }
+
+            @Override
+            public void onGameEnd(final GameView game) {}
+        };
+
+        for (int gameIdx = 0; gameIdx < numGames; gameIdx++) {
+            Game game = new Game(TetrisQAgentBenchmark.SEED + gameIdx, 100, recorder);
+            while (!game.isOver()) {
+                game.update();
+            }
+        }
+        return states;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String modelFile = args.length > 0 ? args[0] : TetrisQAgentBenchmark.MODEL_FILE;
+        int numGames = args.length > 1 ? Integer.parseInt(args[1]) : NUM_GAMES;
+        Precision checked = Precision.valueOf(args.length > 2 ? args[2].toUpperCase() : "FLOAT");
+
+        TetrisQAgent agent = TetrisQAgentBenchmark.loadAgent(modelFile);
+        List<Matrix> states = collectStates(agent, numGames);
+
+        int numMismatches = 0;
+        for (Precision precision : Precision.values()) {
+            InferenceQFunction inferenceQFunction = InferenceQFunction.export(agent.getQFunction(), precision);
+            int numAgreed = 0;
+            for (Matrix inputs : states) {
+                int expected = argmax(agent.getQFunction().forward(inputs));
+                if (inferenceQFunction.argmax(inputs, inputs.getShape().getNumRows()) == expected) {
+                    numAgreed++;
+                }
+            }
+            if (precision == checked) {
+                numMismatches = states.size() - numAgreed;
+            }
+            System.out.println(precision + ": " + numAgreed + "/" + states.size() + " states agree, "
+                + inferenceQFunction.getNumBytes() + " bytes");
+        }
+        System.exit(numMismatches == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,153 @@
+package bench.pas.tetris;
+
+// SYSTEM IMPORTS
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.argparse4j.inf.Namespace;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// JAVA PROJECT IMPORTS
+import edu.bu.tetris.agents.Agent;
+import edu.bu.tetris.game.Game;
+import edu.bu.tetris.game.Game.GameView;
+import edu.bu.tetris.game.minos.Mino;
+import edu.bu.tetris.linalg.Matrix;
+import edu.bu.tetris.nn.Model;
+import edu.bu.tetris.nn.Parameter;
+import src.pas.tetris.agents.TetrisQAgent;
+import src.pas.tetris.agents.TetrisQAgent.QFunctionType;
+
+/**
+ * The two TetrisQAgent q-function architectures side by side on the same decision: every candidate of the
+ * TetrisQAgentBenchmark snapshot, stacked into one batch (the way getBestActionAndQValue feeds it) or forwarded one
+ * row at a time. Forward cost does not depend on the parameter values, so both models are freshly initialized.
+ *
+ * The main method reports what JMH can't: parameter counts, and (given checkpoints trained for each architecture)
+ * the eval utility of the greedy policy, the same sum of getReward the trainer ranks phases by.
+ *
+ *     java -cp "lib/*:lib/jmh/*:bench/out" bench.pas.tetris.QFunctionBenchmark [denseModel] [convModel] [numGames]
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QFunctionBenchmark {
+
+    public static final int NUM_MOVES = 40;
+    public static final int NUM_EVAL_GAMES = 10;
+
+    @Param({"DENSE", "CONV"})
+    public String qFunctionType;
+
+    private Model qFunction;
+    private Matrix batch;
+    private Matrix[] rows;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        TetrisQAgent agent = new TetrisQAgent("bench", QFunctionType.valueOf(this.qFunctionType));
+        this.qFunction = agent.initQFunction();
+
+        GameView game = TetrisQAgentBenchmark.replayGame(TetrisQAgentBenchmark.SEED, NUM_MOVES);
+        List<Mino> positions = game.getFinalMinoPositions();
+        this.rows = new Matrix[positions.size()];
+        for (int rowIdx = 0; rowIdx < this.rows.length; rowIdx++) {
+            this.rows[rowIdx] = agent.getQFunctionInput(game, positions.get(rowIdx));
+        }
+
+        int numFeatures = this.rows[0].getShape().getNumCols();
+        this.batch = Matrix.zeros(this.rows.length, numFeatures);
+        for (int rowIdx = 0; rowIdx < this.rows.length; rowIdx++) {
+            this.batch.copySlice(rowIdx, rowIdx + 1, 0, numFeatures, this.rows[rowIdx]);
+        }
+    }
+
+    @Benchmark
+    public Matrix forwardBatch() throws Exception {
+        return this.qFunction.forward(this.batch);
+    }
+
+    @Benchmark
+    public void forwardRows(Blackhole bh) throws Exception {
+        for (Matrix row : this.rows) {
+            bh.consume(this.qFunction.forward(row));
+        }
+    }
+
+    public static int getNumParameters(Model qFunction) {
+        int numParameters = 0;
+        for (Parameter parameter : qFunction.getParameters()) {
+            numParameters += parameter.getValue().numel();
+        }
+        return numParameters;
+    }
+
+    /**
+     * Greedy (makeMove, no exploration) average over numGames fixed-seed games: {sum of getReward, score}.
+     */
+    public static double[] evaluate(String modelFile, QFunctionType qFunctionType, int numGames) {
+        Map<String, Object> args = new HashMap<String, Object>();
+        args.put("inFile", modelFile);
+        final TetrisQAgent agent = new TetrisQAgent("eval", qFunctionType);
+        agent.initialize(new Namespace(args));
+
+        final double[] utility = new double[1];
+        Agent player = new Agent("eval-player") {
+            @Override
+            public void initialize(Namespace ns) {}
+
+            @Override
+            public Mino makeMove(final GameView game) {
+                utility[0] += agent.getReward(game);
+                return agent.makeMove(game);
+            }
+
+            @Override
+            public void onGameEnd(final GameView game) {}
+        };
+
+        double score = 0;
+        for (int gameIdx = 0; gameIdx < numGames; gameIdx++) {
+            Game game = new Game(TetrisQAgentBenchmark.SEED + gameIdx, 100, player);
+            while (!game.isOver()) {
+                game.update();
+            }
+            score += game.getView().getTotalScore();
+        }
+        return new double[]{utility[0] / numGames, score / numGames};
+    }
+
+    public static void main(String[] args) throws Exception {
+        int numGames = args.length > 2 ? Integer.parseInt(args[2]) : NUM_EVAL_GAMES;
+        for (QFunctionType qFunctionType : QFunctionType.values()) {
+            Model qFunction = new TetrisQAgent("bench", qFunctionType).initQFunction();
+            System.out.print(qFunctionType + ": " + getNumParameters(qFunction) + " parameters");
+
+            String modelFile = qFunctionType.ordinal() < args.length ? args[qFunctionType.ordinal()] : null;
+            if (modelFile != null && !modelFile.isEmpty()) {
+                double[] result = evaluate(modelFile, qFunctionType, numGames);
+                System.out.print(", eval utility " + result[0] + ", score " + result[1] + " over " + numGames
+                    + " game(s) of " + modelFile);
+            }
+            System.out.println();
+        }
+    }
+}
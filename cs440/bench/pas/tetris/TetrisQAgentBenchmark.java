@@ -0,0 +1,156 @@
+package bench.pas.tetris;
+
+// SYSTEM IMPORTS
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.argparse4j.inf.Namespace;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// JAVA PROJECT IMPORTS
+import edu.bu.tetris.agents.Agent;
+import edu.bu.tetris.game.Block;
+import edu.bu.tetris.game.Game;
+import edu.bu.tetris.game.Game.GameView;
+import edu.bu.tetris.game.minos.Mino;
+import edu.bu.tetris.linalg.Matrix;
+import edu.bu.tetris.utils.Pair;
+import src.pas.tetris.agents.TetrisQAgent;
+
+/**
+ * One TetrisQAgent decision: getQFunctionInput for every candidate in getFinalMinoPositions(), and a
+ * Sequential.forward of every candidate's features through the checkpointed Q-function. getBestActionAndQValue is
+ * the batched path the agent actually uses (every candidate stacked into one forward pass).
+ *
+ * Game states are reproduced rather than stored: Game(seed, ...) fixes the mino sequence, and a deterministic
+ * "drop it as low as possible" agent plays numMoves pieces to reach the snapshot.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TetrisQAgentBenchmark {
+
+    public static final long SEED = 12345;
+    public static final String MODEL_FILE = "params/BEST.model";
+
+    @Param({"5", "40", "120"})
+    public int numMoves;
+
+    private TetrisQAgent agent;
+    private GameView game;
+    private List<Mino> positions;
+    private List<Matrix> inputs;
+
+    /**
+     * Always picks the final position whose blocks sit lowest on the board (ties -> first in the list).
+     */
+    public static class LowestDropAgent extends Agent {
+        private int numMovesMade;
+
+        public LowestDropAgent(String name) {
+            super(name);
+            this.numMovesMade = 0;
+        }
+
+        public int getNumMovesMade() { return this.numMovesMade; }
+
+        @Override
+        public void initialize(Namespace ns) {}
+
+        @Override
+        public Mino makeMove(final GameView game) {
+            Mino best = null;
+            int bestDepth = Integer.MIN_VALUE;
+            for (Mino mino : game.getFinalMinoPositions()) {
+                int depth = 0;
+                for (Block block : mino.getBlocks()) {
+                    depth += block.getCoordinate().getYCoordinate();
+                }
+                if (depth > bestDepth) {
+                    bestDepth = depth;
+                    best = mino;
+                }
+            }
+            this.numMovesMade++;
+            return best;
+        }
+
+        @Override
+        public void onGameEnd(final GameView game) {}
+    }
+
+    public static GameView replayGame(long seed, int numMoves) {
+        LowestDropAgent dropAgent = new LowestDropAgent("drop");
+        Game game = new Game(seed, numMoves + 16, dropAgent);
+        while (dropAgent.getNumMovesMade() < numMoves && !game.isOver()) {
+            game.update();
+        }
+        return game.getView();
+    }
+
+    public static TetrisQAgent loadAgent(String modelFile) {
+        Map<String, Object> args = new HashMap<String, Object>();
+        args.put("inFile", modelFile);
+
+        TetrisQAgent agent = new TetrisQAgent("bench");
+        agent.initialize(new Namespace(args));
+        return agent;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.agent = loadAgent(MODEL_FILE);
+        this.game = replayGame(SEED, this.numMoves);
+        this.positions = this.game.getFinalMinoPositions();
+
+        this.inputs = new ArrayList<Matrix>(this.positions.size());
+        for (Mino mino : this.positions) {
+            this.inputs.add(this.agent.getQFunctionInput(this.game, mino));
+        }
+    }
+
+    @Benchmark
+    public void getQFunctionInput(Blackhole bh) {
+        for (Mino mino : this.positions) {
+            bh.consume(this.agent.getQFunctionInput(this.game, mino));
+        }
+    }
+
+    @Benchmark
+    public void forward(Blackhole bh) throws Exception {
+        for (Matrix input : this.inputs) {
+            bh.consume(this.agent.getQFunction().forward(input));
+        }
+    }
+
+    @Benchmark
+    public void getQFunctionInputAndForward(Blackhole bh) throws Exception {
+        for (Mino mino : this.positions) {
+            bh.consume(this.agent.getQFunction().forward(this.agent.getQFunctionInput(this.game, mino)));
+        }
+    }
+
+    @Benchmark
+    public Pair<Mino, Double> getBestActionAndQValue() {
+        return this.agent.getBestActionAndQValue(this.game);
+    }
+}
@@ -6,19 +6,23 @@ import edu.cwru.sepia.action.Action;
 import edu.cwru.sepia.agent.Agent;
 import edu.cwru.sepia.environment.model.history.History.HistoryView;
 import edu.cwru.sepia.environment.model.state.State.StateView;
+import edu.cwru.sepia.environment.model.state.Template;
 import edu.cwru.sepia.environment.model.state.Unit.UnitView;
 
 
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 
 // JAVA PROJECT IMPORTS
@@ -32,109 +36,658 @@ public class BayesianAgent
     extends Agent
 {
 
+    /**
+     * What an enemy unit says about its square, from its template's name. Names are only compared once per
+     * template, the first time one is seen (getSquareType).
+     */
+    public static enum SquareType
+    {
+        HIDDEN,
+        BREEZE,
+        SAFE,
+        PIT,
+        OTHER;
+
+        public static SquareType fromTemplateName(String name)
+        {
+            switch(name.toLowerCase())
+            {
+                case "hiddensquare":
+                    return HIDDEN;
+                case "breezesquare":
+                    return BREEZE;
+                case "safesquare":
+                    return SAFE;
+                case "pitsquare":
+                    return PIT;
+                default:
+                    return OTHER;
+            }
+        }
+    }
+
+    /**
+     * The agent's beliefs on a dense grid sized from the map: every cell of [0, xExtent) x [0, yExtent) has an
+     * index (x * yExtent + y, so index order is coordinate order), a byte state, and its four edge neighbours in a
+     * precomputed table. The hidden cells are also kept in two BitSets (frontier and other), so inference and
+     * frontier maintenance are array and bit operations, with no hashing, boxing or Coordinate allocation.
+     *
+     * Playable cells are [1, extent - 2] in both directions (the rest of the map is OFF_GRID), and start out
+     * REVEALED, a cell without a hidden unit, until setHidden or setEvidence says otherwise.
+     */
     public static class PitfallBayesianNetwork
         extends Object
     {
-        private Map<Coordinate, Boolean>    knownBreezeCoordinates;
-        private Set<Coordinate>             frontierPitCoordinates;
-        private Set<Coordinate>             otherPitCoordinates;
+        public static final byte OFF_GRID = 0;
+        public static final byte REVEALED = 1;  // explored, no evidence seen (yet)
+        public static final byte BREEZE = 2;
+        public static final byte SAFE = 3;
+        public static final byte FRONTIER = 4;  // hidden, next to a playable cell that isn't
+        public static final byte OTHER = 5;     // hidden, surrounded by hidden cells
+
+        public static final int NO_NEIGHBOUR = -1;
+
+        // components smaller than this are solved on the calling thread, forking them costs more than solving them
+        public static final int PARALLEL_MIN_SQUARES = 8;
+
+        private final int                   xExtent;
+        private final int                   yExtent;
+        private final byte[]                cells;          // [idx] state
+        private final int[]                 neighbours;     // [4 * idx + dir] (x - 1, x + 1, y - 1, y + 1) or NO_NEIGHBOUR
+        private final BitSet                frontierCells;
+        private final BitSet                otherCells;
+        private final int[]                 componentIdxs;  // [idx] position of a frontier cell in its component
         private final double                pitProb;
 
-        public PitfallBayesianNetwork(Difficulty difficulty)
+        public PitfallBayesianNetwork(Difficulty difficulty, int xExtent, int yExtent)
         {
-            this.knownBreezeCoordinates = new HashMap<Coordinate, Boolean>();
-
-            this.frontierPitCoordinates = new HashSet<Coordinate>();
-            this.otherPitCoordinates = new HashSet<Coordinate>();
+            this.xExtent = xExtent;
+            this.yExtent = yExtent;
+            this.cells = new byte[xExtent * yExtent];
+            this.neighbours = new int[4 * xExtent * yExtent];
+            this.frontierCells = new BitSet(xExtent * yExtent);
+            this.otherCells = new BitSet(xExtent * yExtent);
+            this.componentIdxs = new int[xExtent * yExtent];
+
+            int[][] dirs = new int[][]{{-1, 0}, {+1, 0}, {0, -1}, {0, +1}};
+            for(int x = 0; x < xExtent; ++x)
+            {
+                for(int y = 0; y < yExtent; ++y)
+                {
+                    int idx = this.getIdx(x, y);
+                    this.cells[idx] = this.isPlayable(x, y) ? REVEALED : OFF_GRID;
+                    for(int dir = 0; dir < dirs.length; ++dir)
+                    {
+                        int nx = x + dirs[dir][0];
+                        int ny = y + dirs[dir][1];
+                        this.neighbours[4 * idx + dir] = this.isPlayable(nx, ny) ? this.getIdx(nx, ny) : NO_NEIGHBOUR;
+                    }
+                }
+            }
 
             this.pitProb = Difficulty.getPitProbability(difficulty);
         }
 
-        public Map<Coordinate, Boolean> getKnownBreezeCoordinates() { return this.knownBreezeCoordinates; }
-        public Set<Coordinate> getFrontierPitCoordinates() { return this.frontierPitCoordinates; }
-        public Set<Coordinate> getOtherPitCoordinates() { return this.otherPitCoordinates; }
+        public final int getXExtent() { return this.xExtent; }
+        public final int getYExtent() { return this.yExtent; }
+        public final int getNumCells() { return this.cells.length; }
         public final double getPitProb() { return this.pitProb; }
 
+        public int getIdx(int x, int y) { return x * this.yExtent + y; }
+        public int getX(int idx) { return idx / this.yExtent; }
+        public int getY(int idx) { return idx % this.yExtent; }
+        public byte getCellState(int idx) { return this.cells[idx]; }
+        public int getNeighbour(int idx, int dir) { return this.neighbours[4 * idx + dir]; }
+
+        // don't modify these, go through setHidden, setEvidence and reveal
+        public BitSet getFrontierCells() { return this.frontierCells; }
+        public BitSet getOtherCells() { return this.otherCells; }
+
+        public boolean isPlayable(int x, int y)
+        {
+            return x >= 1 && x <= this.xExtent - 2 && y >= 1 && y <= this.yExtent - 2;
+        }
+
+        public boolean isHidden(int idx)
+        {
+            return this.cells[idx] == FRONTIER || this.cells[idx] == OTHER;
+        }
+
+        public boolean isEvidence(int idx)
+        {
+            return this.cells[idx] == BREEZE || this.cells[idx] == SAFE;
+        }
+
+        private void setCellState(int idx, byte state)
+        {
+            this.frontierCells.set(idx, state == FRONTIER);
+            this.otherCells.set(idx, state == OTHER);
+            this.cells[idx] = state;
+        }
 
         /**
-         *  TODO: please replace this code. The code here will pick a **random** frontier square to explore next,
-         *        which may be a pit! You should do the following steps:
-         *          1) for each frontier square X, calculate the query Pr[Pit_X = true | evidence]
-         *             we typically expand this to say:
-         *                         Pr[Pit_X = true | evidence] = alpha * Pr[Pit_X = true && evidence]
-         *             however you don't need to calculate alpha explicitly.
-         *             If you calculate Pr[Pit_X = true && evidence] for every X, you can convert the values into
-         *             probabilities by adding up all Pr[Pit_X = true && evidence] values and dividing each
-         *             Pr[Pit_X = true && evidence] value by the sum.
+         * Marks a playable cell hidden, call updateFrontier once every hidden cell is in.
+         */
+        public void setHidden(int idx)
+        {
+            this.setCellState(idx, OTHER);
+        }
+
+        public void setEvidence(int idx, boolean isBreeze)
+        {
+            this.reveal(idx);
+            this.setCellState(idx, isBreeze ? BREEZE : SAFE);
+        }
+
+        /**
+         * idx is no longer hidden (its evidence may come later): its hidden neighbours are on the frontier now.
+         */
+        public void reveal(int idx)
+        {
+            if(this.isHidden(idx))
+            {
+                this.setCellState(idx, REVEALED);
+            }
+            for(int dir = 0; dir < 4; ++dir)
+            {
+                int neighbour = this.neighbours[4 * idx + dir];
+                if(neighbour != NO_NEIGHBOUR && this.cells[neighbour] == OTHER)
+                {
+                    this.setCellState(neighbour, FRONTIER);
+                }
+            }
+        }
+
+        // a hidden cell is on the frontier iff a playable neighbour isn't hidden
+        private void updateFrontier(int idx)
+        {
+            boolean isFrontier = false;
+            for(int dir = 0; dir < 4; ++dir)
+            {
+                int neighbour = this.neighbours[4 * idx + dir];
+                isFrontier |= neighbour != NO_NEIGHBOUR && !this.isHidden(neighbour);
+            }
+            this.setCellState(idx, isFrontier ? FRONTIER : OTHER);
+        }
+
+        public void updateFrontier()
+        {
+            for(int idx = 0; idx < this.cells.length; ++idx)
+            {
+                if(this.isHidden(idx))
+                {
+                    this.updateFrontier(idx);
+                }
+            }
+        }
+
+        public List<Coordinate> getFrontierCoordinates()
+        {
+            List<Coordinate> frontier = new ArrayList<Coordinate>(this.frontierCells.cardinality());
+            for(int idx = this.frontierCells.nextSetBit(0); idx >= 0; idx = this.frontierCells.nextSetBit(idx + 1))
+            {
+                frontier.add(new Coordinate(this.getX(idx), this.getY(idx)));
+            }
+            return frontier;
+        }
+
+        /**
+         * Pr[Pit_X = true | evidence] for every frontier square X, exactly.
          *
-         *          2) pick the pit that is the least likely to have a pit in it to explore next!
+         * Only the frontier is enumerated: a pit outside of it touches no explored square, so it sums out of
+         * Pr[Pit_X = true && evidence] (and the normalizer) as a factor of 1. Each assignment of the frontier weighs
+         * pitProb^k (1 - pitProb)^(n - k) and is consistent with the evidence when every breezy square has a pit
+         * next to it and no safe square does.
          *
-         *          As an aside here, you can certainly choose to calculate Pr[Pit_X = false | evidence] values
-         *          instead (and then pick the coordinate with the highest prob), its up to you!
-         **/
-        public Coordinate getNextCoordinateToExplore()
+         * Squares are assigned in breadth first order over the breezes they share (getFrontierComponents), so a
+         * breeze's squares are assigned close together. A square next to a safe square can only be false, and a
+         * partial assignment is pruned the moment a breeze has all of its squares assigned without a pit.
+         * Enumerating every surviving assignment is still exponential in the frontier, so FrontierEnumeration
+         * merges partial assignments that leave the same open breezes unexplained: they have the same consistent
+         * completions, only the sum of their weights matters.
+         *
+         * Breezes only couple squares next to the same explored square, so the frontier splits into independent
+         * components, each enumerated on its own (the ones with PARALLEL_MIN_SQUARES or more in parallel on the
+         * common ForkJoinPool): the cost is the sum of the components' costs instead of that of their product.
+         *
+         * @return [idx] the posterior of every frontier cell (the prior if the evidence is inconsistent), NaN for
+         *         the other cells
+         */
+        public double[] getFrontierPitPosteriors()
         {
-            System.out.println(this.getFrontierPitCoordinates());
-            // System.out.println(pitProb);
-            Coordinate toExplore = null;
-            double minProb = Double.MAX_VALUE;
+            // breezes only couple squares of one component, so the posterior factors into one per component
+            final List<int[]> components = this.getFrontierComponents();
+            final double[] posteriors = new double[this.cells.length];
+            Arrays.fill(posteriors, Double.NaN);
+
+            // every component writes only its own cells
+            List<ForkJoinTask<?>> forked = new ArrayList<ForkJoinTask<?>>();
+            for(final int[] component : components)
+            {
+                if(component.length >= PARALLEL_MIN_SQUARES)
+                {
+                    forked.add(ForkJoinPool.commonPool().submit(() -> this.setComponentPosteriors(component,
+                                                                                                  posteriors)));
+                }
+            }
 
-            // iterates through POSSIBLE next moves (what is available from what is uncovered)
-            for (Coordinate frontierSquare : this.getFrontierPitCoordinates()) 
+            // the small components (most of them) on this thread while the pool works on the big ones
+            for(int[] component : components)
             {
-                double pitProbability = pitProb;
+                if(component.length < PARALLEL_MIN_SQUARES)
+                {
+                    this.setComponentPosteriors(component, posteriors);
+                }
+            }
+            for(ForkJoinTask<?> task : forked)
+            {
+                task.join();
+            }
+            return posteriors;
+        }
 
-                // iterates through coords that have been explored (recognizes which ones are breezes)
-                for (Map.Entry<Coordinate, Boolean> possiblePit : knownBreezeCoordinates.entrySet()) 
+        /**
+         * The posteriors of one component of getFrontierComponents: only the evidence next to it says anything
+         * about its squares.
+         */
+        private void setComponentPosteriors(int[] component, double[] posteriors)
+        {
+            // a frontier square next to a safe square can't be a pit, every breeze needs one of its frontier squares
+            boolean[] canBePit = new boolean[component.length];
+            Arrays.fill(canBePit, true);
+            List<int[]> breezes = new ArrayList<int[]>();
+            int[] squares = new int[4];
+            for(int square : component)
+            {
+                for(int dir = 0; dir < 4; ++dir)
                 {
-                    Coordinate coordinate = possiblePit.getKey();
-                    // t/f 
-                    boolean isBreeze = possiblePit.getValue();
-
-                    // getting x, y of the POSSIBLE move + x, y of the KNOWN breeze 
-                    int x1 = frontierSquare.getXCoordinate();
-                    int y1 = frontierSquare.getYCoordinate();
-                    int x2 = coordinate.getXCoordinate();
-                    int y2 = coordinate.getYCoordinate();
-
-                    // check if POSSIBLE move is adjacent to KNOWN breeze
-                    // this conditional only finds applicable frontier breezes that are adjacent to breezes 
-                    // NEXT: counter for possible combinations involving how many breezes? 
-                    if (Math.abs(x1 - x2) <= 1 && Math.abs(y1 - y2) <= 1 && (x1 == x2 || y1 == y2))
+                    int evidence = this.neighbours[4 * square + dir];
+                    if(evidence == NO_NEIGHBOUR || !this.isEvidence(evidence))
+                    {
+                        continue;
+                    }
+
+                    // the evidence's frontier squares, it is handled by the first of them in component order
+                    int numSquares = 0;
+                    int first = Integer.MAX_VALUE;
+                    for(int evidenceDir = 0; evidenceDir < 4; ++evidenceDir)
+                    {
+                        int neighbour = this.neighbours[4 * evidence + evidenceDir];
+                        if(neighbour != NO_NEIGHBOUR && this.cells[neighbour] == FRONTIER)
+                        {
+                            squares[numSquares++] = this.componentIdxs[neighbour];
+                            first = Math.min(first, this.componentIdxs[neighbour]);
+                        }
+                    }
+                    if(first != this.componentIdxs[square])
+                    {
+                        continue;
+                    }
+
+                    if(this.cells[evidence] == SAFE)
                     {
-                        // now for each frontier next to breeze, we calculate probability 2^frontier - 1 
-                        if (isBreeze) {       
-                            pitProbability *= 1 - pitProb;
-                        } else {
-                            pitProbability *= pitProb;
+                        for(int i = 0; i < numSquares; ++i)
+                        {
+                            canBePit[squares[i]] = false;
                         }
+                    } else
+                    {
+                        breezes.add(Arrays.copyOf(squares, numSquares));
                     }
                 }
+            }
+
+            double[] componentPosteriors = new FrontierEnumeration(canBePit, breezes, this.getPitProb())
+                .getPosteriors();
+            for(int i = 0; i < component.length; ++i)
+            {
+                posteriors[component[i]] = componentPosteriors[i];
+            }
+        }
 
-                if (pitProbability < minProb) {
-                        minProb = pitProbability;
-                        toExplore = frontierSquare;
+        /**
+         * The frontier split into its independent constraint components, each in the order FrontierEnumeration
+         * assigns it: breadth first from the component's lowest square, two squares being adjacent when they are
+         * next to the same explored square. Also records every frontier cell's position in its component.
+         */
+        public List<int[]> getFrontierComponents()
+        {
+            List<int[]> components = new ArrayList<int[]>();
+            BitSet visited = new BitSet(this.cells.length);
+            int[] queue = new int[this.frontierCells.cardinality()];
+            for(int start = this.frontierCells.nextSetBit(0); start >= 0;
+                start = this.frontierCells.nextSetBit(start + 1))
+            {
+                if(visited.get(start))
+                {
+                    continue;
                 }
+                visited.set(start);
+                int head = 0;
+                int tail = 0;
+                queue[tail++] = start;
+                while(head < tail)
+                {
+                    int square = queue[head];
+                    this.componentIdxs[square] = head++;
+                    for(int dir = 0; dir < 4; ++dir)
+                    {
+                        int explored = this.neighbours[4 * square + dir];
+                        if(explored == NO_NEIGHBOUR || !this.isEvidence(explored))
+                        {
+                            continue;
+                        }
+                        for(int exploredDir = 0; exploredDir < 4; ++exploredDir)
+                        {
+                            int next = this.neighbours[4 * explored + exploredDir];
+                            if(next != NO_NEIGHBOUR && this.cells[next] == FRONTIER && !visited.get(next))
+                            {
+                                visited.set(next);
+                                queue[tail++] = next;
+                            }
+                        }
+                    }
+                }
+                components.add(Arrays.copyOf(queue, tail));
             }
-            System.out.println("Exploring next:" + toExplore + ", with Pit probability: " + minProb);
-            return toExplore;
+            return components;
         }
-        // LEFTOFF: 
-        //     running program encounters wall of breezes (offset by 1 unit, AI does not know where to go)
-        //     try to implement code that increases probability for the amount of adjacent breezes
-        //         this means that it should be choosing the tile with only 1 adjacent breeze compared to 3 adjacent breezes
-        //     also implement something that breaks a tie -- if there is nowhere to go, it should just choose a frontier coord at random
-        
-}
+
+        /**
+         * The enumeration of getFrontierPitPosteriors over squares 0..n-1, in order. After square idx the only
+         * thing a partial assignment passes on to the rest is which open breezes (some squares assigned, some not)
+         * still have no pit, a bitmask over the breezes' slots, so the forward pass keeps one summed weight per mask
+         * and square. The backward pass sums the weight of the consistent completions of every mask, and the pit
+         * posterior of square idx is
+         *
+         *     sum over masks m before idx of forward(m) * pitProb * backward(m after a pit at idx)
+         *     ---------------------------------------------------------------------------------------
+         *              the same sum over both values of square idx
+         *
+         * The weights carry pitProb / (1 - pitProb) per pit instead of pitProb^k (1 - pitProb)^(n - k), the
+         * (1 - pitProb)^n cancels, and every step is rescaled so long frontiers don't underflow.
+         */
+        private static class FrontierEnumeration
+            extends Object
+        {
+            // bit 63 stays clear, so masks are never negative and -1 can mean "inconsistent"
+            public static final int MAX_OPEN_BREEZES = Long.SIZE - 1;
+
+            private final int       numSquares;
+            private final boolean[] canBePit;
+            private final long[]    openedAt;   // [idx] slots of the breezes whose first square is idx
+            private final long[]    closedAt;   // [idx] slots of the breezes whose last square is idx
+            private final long[]    touchedBy;  // [idx] slots of the breezes idx is next to
+            private final double    pitProb;
+
+            public FrontierEnumeration(boolean[] canBePit, List<int[]> breezes, double pitProb)
+            {
+                this.numSquares = canBePit.length;
+                this.canBePit = canBePit;
+                this.pitProb = pitProb;
+                this.openedAt = new long[this.numSquares];
+                this.closedAt = new long[this.numSquares];
+                this.touchedBy = new long[this.numSquares];
+
+                // breezes by first and by last square, as linked lists through the breeze indices
+                int[] openingHead = new int[this.numSquares];
+                int[] closingHead = new int[this.numSquares];
+                int[] nextOpening = new int[breezes.size()];
+                int[] nextClosing = new int[breezes.size()];
+                Arrays.fill(openingHead, -1);
+                Arrays.fill(closingHead, -1);
+                for(int breezeIdx = 0; breezeIdx < breezes.size(); ++breezeIdx)
+                {
+                    int first = Integer.MAX_VALUE;
+                    int last = -1;
+                    for(int square : breezes.get(breezeIdx))
+                    {
+                        first = Math.min(first, square);
+                        last = Math.max(last, square);
+                    }
+                    nextOpening[breezeIdx] = openingHead[first];
+                    openingHead[first] = breezeIdx;
+                    nextClosing[breezeIdx] = closingHead[last];
+                    closingHead[last] = breezeIdx;
+                }
+
+                // a breeze holds its slot from its first square to its last one
+                long[] slots = new long[breezes.size()];
+                long freeSlots = Long.MAX_VALUE;
+                for(int idx = 0; idx < this.numSquares; ++idx)
+                {
+                    for(int breezeIdx = openingHead[idx]; breezeIdx >= 0; breezeIdx = nextOpening[breezeIdx])
+                    {
+                        if(freeSlots == 0L)
+                        {
+                            throw new IllegalStateException("[ERROR] FrontierEnumeration.FrontierEnumeration: more "
+                                + "than " + MAX_OPEN_BREEZES + " breezes open at once");
+                        }
+                        long slot = Long.lowestOneBit(freeSlots);
+                        slots[breezeIdx] = slot;
+                        freeSlots &= ~slot;
+                        this.openedAt[idx] |= slot;
+                        for(int square : breezes.get(breezeIdx))
+                        {
+                            this.touchedBy[square] |= slot;
+                        }
+                    }
+                    for(int breezeIdx = closingHead[idx]; breezeIdx >= 0; breezeIdx = nextClosing[breezeIdx])
+                    {
+                        this.closedAt[idx] |= slots[breezeIdx];
+                        freeSlots |= slots[breezeIdx];
+                    }
+                }
+            }
+
+            // -1 if a pit (or not) at idx leaves a closing breeze unexplained, the mask after idx otherwise
+            private long next(int idx, long mask, boolean isPit)
+            {
+                mask |= this.openedAt[idx];
+                if(isPit)
+                {
+                    mask &= ~this.touchedBy[idx];
+                }
+                return (mask & this.closedAt[idx]) != 0L ? -1L : mask;
+            }
+
+            public double[] getPosteriors()
+            {
+                double pitWeight = this.pitProb / (1.0 - this.pitProb);
+
+                MaskTable[] forward = new MaskTable[this.numSquares + 1];
+                forward[0] = new MaskTable();
+                forward[0].add(0L, 1.0);
+                for(int idx = 0; idx < this.numSquares; ++idx)
+                {
+                    MaskTable masks = forward[idx];
+                    MaskTable nextMasks = new MaskTable();
+                    for(int slot = 0; slot < masks.getCapacity(); ++slot)
+                    {
+                        long mask = masks.getMask(slot);
+                        if(mask == MaskTable.EMPTY)
+                        {
+                            continue;
+                        }
+                        long noPitMask = this.next(idx, mask, false);
+                        if(noPitMask >= 0L)
+                        {
+                            nextMasks.add(noPitMask, masks.getWeight(slot));
+                        }
+                        long pitMask = this.canBePit[idx] ? this.next(idx, mask, true) : -1L;
+                        if(pitMask >= 0L)
+                        {
+                            nextMasks.add(pitMask, masks.getWeight(slot) * pitWeight);
+                        }
+                    }
+                    nextMasks.normalize();
+                    forward[idx + 1] = nextMasks;
+                }
+
+                double[] posteriors = new double[this.numSquares];
+                MaskTable backward = new MaskTable();
+                backward.add(0L, 1.0);      // every breeze is closed by now, so only the empty mask is left
+                for(int idx = this.numSquares - 1; idx >= 0; --idx)
+                {
+                    MaskTable masks = forward[idx];
+                    MaskTable prevBackward = new MaskTable();
+                    double pitTotal = 0.0;
+                    double total = 0.0;
+                    for(int slot = 0; slot < masks.getCapacity(); ++slot)
+                    {
+                        long mask = masks.getMask(slot);
+                        if(mask == MaskTable.EMPTY)
+                        {
+                            continue;
+                        }
+                        long noPitMask = this.next(idx, mask, false);
+                        long pitMask = this.canBePit[idx] ? this.next(idx, mask, true) : -1L;
+                        double noPit = noPitMask >= 0L ? backward.get(noPitMask) : 0.0;
+                        double pit = pitMask >= 0L ? pitWeight * backward.get(pitMask) : 0.0;
+
+                        prevBackward.add(mask, noPit + pit);
+                        pitTotal += masks.getWeight(slot) * pit;
+                        total += masks.getWeight(slot) * (noPit + pit);
+                    }
+                    posteriors[idx] = total > 0.0 ? pitTotal / total : this.pitProb;
+                    prevBackward.normalize();
+                    backward = prevBackward;
+                }
+                return posteriors;
+            }
+        }
+
+        /**
+         * mask -> summed weight, open addressing over primitive arrays (masks are never negative, EMPTY marks a free
+         * slot), at most half full.
+         */
+        private static class MaskTable
+            extends Object
+        {
+            public static final long EMPTY = -1L;
+
+            private long[]      masks;
+            private double[]    weights;
+            private int         size;
+
+            public MaskTable()
+            {
+                this.masks = new long[16];
+                this.weights = new double[16];
+                this.size = 0;
+                Arrays.fill(this.masks, EMPTY);
+            }
+
+            public int getCapacity() { return this.masks.length; }
+            public long getMask(int slot) { return this.masks[slot]; }
+            public double getWeight(int slot) { return this.weights[slot]; }
+
+            private int find(long mask)
+            {
+                // splitmix64 finalizer, slot bits of a mask alone are too regular
+                long z = mask * 0x9e3779b97f4a7c15L;
+                z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+                z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+                int slot = (int)(z ^ (z >>> 31)) & (this.masks.length - 1);
+                while(this.masks[slot] != EMPTY && this.masks[slot] != mask)
+                {
+                    slot = (slot + 1) & (this.masks.length - 1);
+                }
+                return slot;
+            }
+
+            public double get(long mask)
+            {
+                int slot = this.find(mask);
+                return this.masks[slot] == EMPTY ? 0.0 : this.weights[slot];
+            }
+
+            public void add(long mask, double weight)
+            {
+                int slot = this.find(mask);
+                if(this.masks[slot] == EMPTY)
+                {
+                    this.masks[slot] = mask;
+                    this.weights[slot] = 0.0;
+                    if(++this.size * 2 > this.masks.length)
+                    {
+                        this.grow();
+                        slot = this.find(mask);
+                    }
+                }
+                this.weights[slot] += weight;
+            }
+
+            private void grow()
+            {
+                long[] oldMasks = this.masks;
+                double[] oldWeights = this.weights;
+                this.masks = new long[2 * oldMasks.length];
+                this.weights = new double[2 * oldMasks.length];
+                Arrays.fill(this.masks, EMPTY);
+                for(int slot = 0; slot < oldMasks.length; ++slot)
+                {
+                    if(oldMasks[slot] != EMPTY)
+                    {
+                        int newSlot = this.find(oldMasks[slot]);
+                        this.masks[newSlot] = oldMasks[slot];
+                        this.weights[newSlot] = oldWeights[slot];
+                    }
+                }
+            }
+
+            public void normalize()
+            {
+                double max = 0.0;
+                for(int slot = 0; slot < this.masks.length; ++slot)
+                {
+                    if(this.masks[slot] != EMPTY)
+                    {
+                        max = Math.max(max, this.weights[slot]);
+                    }
+                }
+                if(max > 0.0)
+                {
+                    for(int slot = 0; slot < this.masks.length; ++slot)
+                    {
+                        this.weights[slot] /= max;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Picks the frontier square least likely to hold a pit, Pr[Pit_X = true | evidence] from
+         * getFrontierPitPosteriors (ties go to the first square in coordinate order).
+         **/
+        public Coordinate getNextCoordinateToExplore()
+        {
+            double[] posteriors = this.getFrontierPitPosteriors();
+            int toExplore = -1;
+            double minProb = Double.MAX_VALUE;
+            for(int idx = this.frontierCells.nextSetBit(0); idx >= 0; idx = this.frontierCells.nextSetBit(idx + 1))
+            {
+                if(posteriors[idx] < minProb)
+                {
+                    minProb = posteriors[idx];
+                    toExplore = idx;
+                }
+            }
+
+            Coordinate coord = toExplore < 0 ? null : new Coordinate(this.getX(toExplore), this.getY(toExplore));
+            System.out.println("Exploring next:" + coord + ", with Pit probability: " + minProb);
+            return coord;
+        }
+    }
 
     private int                     myUnitID;
     private int                     enemyPlayerNumber;
-    private Set<Coordinate>         gameCoordinates;
-    private Set<Coordinate>         unexploredCoordinates;
     private Coordinate              coordinateIJustAttacked;
     private Coordinate              srcCoordinate;
     private Coordinate              dstCoordinate;
     private PitfallBayesianNetwork  bayesianNetwork;
+    private SquareType[]            squareTypes;    // [template id]
+    private BitSet                  pendingCells;   // attacked, replacement unit not seen yet
 
     private final Difficulty        difficulty;
 
@@ -149,24 +702,23 @@ public class BayesianAgent
 
         this.myUnitID = -1;
         this.enemyPlayerNumber = -1;
-        this.gameCoordinates = new HashSet<Coordinate>();
-        this.unexploredCoordinates = new HashSet<Coordinate>();
         this.coordinateIJustAttacked = null;
         this.srcCoordinate = null;
         this.dstCoordinate = null;
         this.bayesianNetwork = null;
+        this.squareTypes = new SquareType[0];
+        this.pendingCells = new BitSet();
 
         this.difficulty = Difficulty.valueOf(args[2].toUpperCase());
 	}
 
 	public int getMyUnitID() { return this.myUnitID; }
     public int getEnemyPlayerNumber() { return this.enemyPlayerNumber; }
-    public Set<Coordinate> getGameCoordinates() { return this.gameCoordinates; }
-    public Set<Coordinate> getUnexploredCoordinates() { return this.unexploredCoordinates; }
     public final Coordinate getCoordinateIJustAttacked() { return this.coordinateIJustAttacked; }
     public final Coordinate getSrcCoordinate() { return this.srcCoordinate; }
     public final Coordinate getDstCoordinate() { return this.dstCoordinate; }
     public PitfallBayesianNetwork getBayesianNetwork() { return this.bayesianNetwork; }
+    public BitSet getPendingCells() { return this.pendingCells; }
     public final Difficulty getDifficulty() { return this.difficulty; }
 
     private void setMyUnitID(int i) { this.myUnitID = i; }
@@ -218,11 +770,17 @@ public class BayesianAgent
 			enemyPlayerNumber = playerNumbers[1];
 		}
 
+        // template names to types, once (replacement units are built from these templates too)
+        for(Template.TemplateView template : state.getTemplates(enemyPlayerNumber))
+        {
+            this.setSquareType(template.getID(), SquareType.fromTemplateName(template.getName()));
+        }
+
         // check enemy units
         Set<Integer> enemyUnitIDs = new HashSet<Integer>();
         for(Integer unitID : state.getUnitIds(enemyPlayerNumber))
         {
-            if(!state.getUnit(unitID).getTemplateView().getName().toLowerCase().equals("hiddensquare"))
+            if(this.getSquareType(state.getUnit(unitID)) != SquareType.HIDDEN)
 		    {
 			    System.err.println("ERROR [BayesianAgent.initialStep]: Enemy should start off with HiddenSquare units!");
 			        System.exit(-1);
@@ -231,21 +789,23 @@ public class BayesianAgent
         }
 
 
-        // initially everything is unknown
-        Coordinate coord = null;
-        for(Integer unitID : enemyUnitIDs)
-        {
-            coord = new Coordinate(state.getUnit(unitID).getXPosition(),
-                                   state.getUnit(unitID).getYPosition());
-            this.getUnexploredCoordinates().add(coord);
-            this.getGameCoordinates().add(coord);
-        }
-
         this.setMyUnitID(myUnitIDs.iterator().next());
         this.setEnemyPlayerNumber(enemyPlayerNumber);
         this.setSrcCoordinate(new Coordinate(1, state.getYExtent() - 2));
         this.setDstCoordinate(new Coordinate(state.getXExtent() - 2, 1));
-        this.setBayesianNetwork(new PitfallBayesianNetwork(this.getDifficulty()));
+        this.setBayesianNetwork(new PitfallBayesianNetwork(this.getDifficulty(), state.getXExtent(),
+                                                           state.getYExtent()));
+
+        // initially everything is unknown, the frontier is whatever already borders a square without a hidden unit
+        PitfallBayesianNetwork network = this.getBayesianNetwork();
+        for(Integer unitID : enemyUnitIDs)
+        {
+            network.setHidden(network.getIdx(state.getUnit(unitID).getXPosition(),
+                                             state.getUnit(unitID).getYPosition()));
+        }
+        network.updateFrontier();
+        this.getPendingCells().set(network.getIdx(this.getSrcCoordinate().getXCoordinate(),
+                                                  this.getSrcCoordinate().getYCoordinate()));
 
         Map<Integer, Action> initialActions = new HashMap<Integer, Action>();
         initialActions.put(
@@ -255,74 +815,65 @@ public class BayesianAgent
                 state.unitAt(this.getSrcCoordinate().getXCoordinate(), this.getSrcCoordinate().getYCoordinate())
             )
         );
-        this.getUnexploredCoordinates().remove(this.getSrcCoordinate());
 		return initialActions;
 	}
 
-    public boolean isFrontierCoordiante(Coordinate src,
-                                        StateView state)
+    public SquareType getSquareType(UnitView unitView)
     {
-        int dirs[][] = new int[][]{{-1, 0}, {+1, 0}, {0, -1}, {0, +1}};
-        for(int dir[] : dirs)
+        int templateID = unitView.getTemplateView().getID();
+        if(templateID >= this.squareTypes.length || this.squareTypes[templateID] == null)
         {
-            int x = src.getXCoordinate() + dir[0];
-            int y = src.getYCoordinate() + dir[1];
+            this.setSquareType(templateID, SquareType.fromTemplateName(unitView.getTemplateView().getName()));
+        }
+        return this.squareTypes[templateID];
+    }
 
-            if(x >= 1 && x <= state.getXExtent() - 2 &&
-               y >= 1 && y <= state.getYExtent() - 2 &&
-               (!state.isUnitAt(x, y) ||
-                !state.getUnit(state.unitAt(x, y)).getTemplateView().getName().toLowerCase().equals("hiddensquare")))
-            {
-                return true;
-            }
+    private void setSquareType(int templateID, SquareType squareType)
+    {
+        if(templateID >= this.squareTypes.length)
+        {
+            this.squareTypes = Arrays.copyOf(this.squareTypes, Math.max(templateID + 1, 2 * this.squareTypes.length));
         }
-        return false;
+        this.squareTypes[templateID] = squareType;
     }
 
+    /**
+     * Updates the network with the squares attacked since the last call instead of rebuilding it: an attacked
+     * square leaves the frontier (its hidden neighbours join it), and its breeze/safe evidence is recorded once the
+     * GameAgent's replacement unit shows up, which can take a turn. A square whose unit is still hidden was not
+     * revealed and stays on the frontier.
+     */
     public void makeObservations(StateView state,
                                  HistoryView history)
     {
-        this.getBayesianNetwork().getKnownBreezeCoordinates().clear();
-        this.getBayesianNetwork().getFrontierPitCoordinates().clear();
-        this.getBayesianNetwork().getOtherPitCoordinates().clear();
+        PitfallBayesianNetwork network = this.getBayesianNetwork();
+        if(this.getCoordinateIJustAttacked() != null)
+        {
+            this.getPendingCells().set(network.getIdx(this.getCoordinateIJustAttacked().getXCoordinate(),
+                                                      this.getCoordinateIJustAttacked().getYCoordinate()));
+        }
 
-        Set<Coordinate> exploredCoordinates = new HashSet<Coordinate>();
-        for(Integer enemyUnitID : state.getUnitIds(this.getEnemyPlayerNumber()))
+        BitSet pending = this.getPendingCells();
+        for(int idx = pending.nextSetBit(0); idx >= 0; idx = pending.nextSetBit(idx + 1))
         {
-            UnitView enemyUnitView = state.getUnit(enemyUnitID);
-            if(enemyUnitView.getTemplateView().getName().toLowerCase().equals("breezesquare"))
-            {
-                this.getBayesianNetwork().getKnownBreezeCoordinates().put(
-                    new Coordinate(enemyUnitView.getXPosition(),
-                                   enemyUnitView.getYPosition()),
-                    true
-                );
-            } else if(enemyUnitView.getTemplateView().getName().toLowerCase().equals("safesquare"))
+            Integer unitID = state.unitAt(network.getX(idx), network.getY(idx));
+            SquareType squareType = unitID == null ? null : this.getSquareType(state.getUnit(unitID));
+            if(squareType == SquareType.HIDDEN)
             {
-                this.getBayesianNetwork().getKnownBreezeCoordinates().put(
-                    new Coordinate(enemyUnitView.getXPosition(),
-                                   enemyUnitView.getYPosition()),
-                    false
-                );
-            } else if(enemyUnitView.getTemplateView().getName().toLowerCase().equals("hiddensquare"))
-            {
-                this.getBayesianNetwork().getOtherPitCoordinates().add(
-                    new Coordinate(enemyUnitView.getXPosition(),
-                                   enemyUnitView.getYPosition())
-                );
+                pending.clear(idx);
+                continue;
             }
 
-            // now separate out the frontier from the "other" ones
-            for(Coordinate unknownCoordinate : this.getBayesianNetwork().getOtherPitCoordinates())
+            network.reveal(idx);
+            if(squareType == null)
             {
-                if(this.isFrontierCoordiante(unknownCoordinate, state))
-                {
-                    this.getBayesianNetwork().getFrontierPitCoordinates().add(unknownCoordinate);
-                }
+                continue;   // killed, not replaced yet
+            }
+            if(squareType == SquareType.BREEZE || squareType == SquareType.SAFE)
+            {
+                network.setEvidence(idx, squareType == SquareType.BREEZE);
             }
-            this.getBayesianNetwork().getOtherPitCoordinates().removeAll(
-                this.getBayesianNetwork().getFrontierPitCoordinates()
-            );
+            pending.clear(idx);
         }
     }
 
@@ -356,9 +907,9 @@ public class BayesianAgent
                     System.exit(-1);
                 }
 
-                String unitTemplateName = state.getUnit(unitID).getTemplateView().getName();
-                if(!unitTemplateName.toLowerCase().equals("hiddensquare"))
+                if(this.getSquareType(state.getUnit(unitID)) != SquareType.HIDDEN)
                 {
+                    String unitTemplateName = state.getUnit(unitID).getTemplateView().getName();
                     // can't attack non hidden-squares!
                     System.err.println("ERROR: BayesianAgent.middleStep: deciding to attack unit at " +
                         coordinateOfUnitToAttack + " but unit at that square is [" + unitTemplateName + "] " +
@@ -373,7 +924,6 @@ public class BayesianAgent
                         this.getMyUnitID(),
                         unitID)
                 );
-                this.getUnexploredCoordinates().remove(coordinateOfUnitToAttack);
             }
 
         }
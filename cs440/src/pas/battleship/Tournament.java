@@ -0,0 +1,319 @@
+package src.pas.battleship;
+
+// SYSTEM IMPORTS
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+// JAVA PROJECT IMPORTS
+import edu.bu.battleship.Main;
+import edu.bu.battleship.agents.Agent;
+import edu.bu.battleship.game.Constants;
+import edu.bu.battleship.game.Difficulty;
+import edu.bu.battleship.game.Game;
+import edu.bu.battleship.game.Game.GameView;
+import edu.bu.battleship.utils.Coordinate;
+import src.pas.battleship.agents.ProbabilisticAgent;
+import src.pas.battleship.agents.ProbabilisticAgent.TargetingMode;
+
+/**
+ * Headless batch runner: plays ProbabilisticAgent (as player 1) against the staff Easy/Medium/Hard agents for
+ * many games at once, without going through GamePanel/GameRenderer.
+ *
+ * Every game runs on its own worker and records its own results, which are merged once all games of an opponent
+ * are done. For each opponent we report games/sec, win rate, average shots-to-win and the distribution of
+ * ProbabilisticAgent.makeMove latency.
+ *
+ * Usage: java -cp "lib/*:." src.pas.battleship.Tournament -n 1000 -d HARD
+ */
+public class Tournament {
+
+    public static final String[] OPPONENTS = new String[]{
+        "edu.bu.battleship.agents.EasyAgent",
+        "edu.bu.battleship.agents.MediumAgent",
+        "edu.bu.battleship.agents.HardAgent"
+    };
+
+    /**
+     * Latency histogram with HdrHistogram-style log-linear buckets: values below 2^SUB_BUCKET_BITS get their own
+     * bucket, above that every power of two is split into 2^(SUB_BUCKET_BITS - 1) equal buckets. With 8 bits the
+     * relative error of any reported value is below 1%, and all of [0, 2^63) fits in a fixed long[].
+     */
+    public static class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 8;
+        private static final int HALF_SUB_BUCKETS = 1 << (SUB_BUCKET_BITS - 1);
+        private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS + 1) * HALF_SUB_BUCKETS;
+
+        private final long[] counts;
+        private long totalCount;
+        private long maxValue;
+
+        public LatencyHistogram() {
+            this.counts = new long[NUM_BUCKETS];
+            this.totalCount = 0;
+            this.maxValue = 0;
+        }
+
+        public long getTotalCount() { return this.totalCount; }
+        public long getMaxValue() { return this.maxValue; }
+
+        public void record(long value) {
+            value = Math.max(0, value);
+            this.counts[getBucketIndex(value)]++;
+            this.totalCount++;
+            this.maxValue = Math.max(this.maxValue, value);
+        }
+
+        public void add(LatencyHistogram other) {
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                this.counts[i] += other.counts[i];
+            }
+            this.totalCount += other.totalCount;
+            this.maxValue = Math.max(this.maxValue, other.maxValue);
+        }
+
+        /**
+         * @return the lowest value that shares a bucket with the value at the given percentile (0 - 100].
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (this.totalCount == 0) {
+                return 0;
+            }
+            long countAtPercentile = Math.max(1, (long) Math.ceil(percentile / 100.0 * this.totalCount));
+            long cumulative = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                cumulative += this.counts[i];
+                if (cumulative >= countAtPercentile) {
+                    return Math.min(getBucketLowerBound(i), this.maxValue);
+                }
+            }
+            return this.maxValue;
+        }
+
+        /**
+         * Print one line per power of two that saw any values: the range, the count and the cumulative percentile.
+         */
+        public void printBuckets(PrintStream out, double unitScale, String unit) {
+            long cumulative = 0;
+            int firstIndex = 0;
+            while (firstIndex < NUM_BUCKETS) {
+                // group buckets by power of two so the table stays short
+                long lower = getBucketLowerBound(firstIndex);
+                long upper = (lower == 0) ? 1 : Long.highestOneBit(lower) << 1;
+                long count = 0;
+                int i = firstIndex;
+                while (i < NUM_BUCKETS && getBucketLowerBound(i) < upper && getBucketLowerBound(i) >= lower) {
+                    count += this.counts[i++];
+                }
+                if (count > 0) {
+                    cumulative += count;
+                    out.println(String.format("    [%12.3f, %12.3f) %s  count=%-9d %8.3f%%",
+                        lower / unitScale, upper / unitScale, unit, count, 100.0 * cumulative / this.totalCount));
+                }
+                firstIndex = Math.max(i, firstIndex + 1);
+            }
+        }
+
+        private static int getBucketIndex(long value) {
+            if (value < (1L << SUB_BUCKET_BITS)) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            long top = value >>> (exponent - (SUB_BUCKET_BITS - 1));    // in [HALF_SUB_BUCKETS, 2 * HALF_SUB_BUCKETS)
+            return (exponent - SUB_BUCKET_BITS + 1) * HALF_SUB_BUCKETS + (int) top;
+        }
+
+        private static long getBucketLowerBound(int index) {
+            if (index < (1 << SUB_BUCKET_BITS)) {
+                return index;
+            }
+            int octave = index / HALF_SUB_BUCKETS;
+            long top = HALF_SUB_BUCKETS + (index % HALF_SUB_BUCKETS);
+            return top << (octave - 1);
+        }
+    }
+
+    /**
+     * Wraps the agent under test and times every makeMove call in nanoseconds. Agent.call() itself only reports
+     * whole milliseconds, which is far too coarse for a density lookup.
+     */
+    public static class TimedAgent extends Agent {
+        private final Agent agent;
+        private final LatencyHistogram latencies;
+        private int numMoves;
+
+        public TimedAgent(Agent agent) {
+            super(agent.getName());
+            this.agent = agent;
+            this.latencies = new LatencyHistogram();
+            this.numMoves = 0;
+        }
+
+        public final Agent getAgent() { return this.agent; }
+        public LatencyHistogram getLatencies() { return this.latencies; }
+        public int getNumMoves() { return this.numMoves; }
+
+        @Override
+        public Coordinate makeMove(final GameView game) {
+            long start = System.nanoTime();
+            Coordinate move = this.getAgent().makeMove(game);
+            this.latencies.record(System.nanoTime() - start);
+            this.numMoves++;
+            return move;
+        }
+
+        @Override
+        public void afterGameEnds(final GameView game) {
+            this.getAgent().afterGameEnds(game);
+        }
+    }
+
+    public static class GameResult {
+        private final boolean won;
+        private final int numShots;
+        private final LatencyHistogram latencies;
+
+        public GameResult(boolean won, int numShots, LatencyHistogram latencies) {
+            this.won = won;
+            this.numShots = numShots;
+            this.latencies = latencies;
+        }
+
+        public final boolean getWon() { return this.won; }
+        public final int getNumShots() { return this.numShots; }
+        public final LatencyHistogram getLatencies() { return this.latencies; }
+    }
+
+    public static GameResult playGame(Difficulty difficulty, Agent player1, String opponentClass,
+                                      long thinkingTimeInMS) {
+        Constants constants = new Constants(difficulty);
+        TimedAgent timedAgent = new TimedAgent(player1);
+        Agent opponent = Main.getAgent(opponentClass);
+
+        Game game = new Game(Main.makeRandomFleet(constants, 1), Main.makeRandomFleet(constants, 2),
+                             constants, timedAgent, opponent, thinkingTimeInMS);
+        try {
+            while (!game.isOver()) {
+                game.update();
+            }
+            boolean won = game.didPlayer1Win();
+            timedAgent.afterGameEnds(new GameView(game.getPlayer1View(), constants, game.getMaxTimeInMS()));
+            opponent.afterGameEnds(new GameView(game.getPlayer2View(), constants, game.getMaxTimeInMS()));
+            return new GameResult(won, timedAgent.getNumMoves(), timedAgent.getLatencies());
+        } finally {
+            // every Game owns a single-thread executor for its agents, don't leak one per game
+            game.getBackgroundThreadManager().shutdownNow();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        ArgumentParser parser = ArgumentParsers.newFor("Tournament").build()
+            .defaultHelp(true)
+            .description("Play ProbabilisticAgent against the staff agents headlessly and report throughput");
+        parser.addArgument("-n", "--numGames")
+            .type(Integer.class)
+            .setDefault(100)
+            .help("number of games to play against each opponent");
+        parser.addArgument("-d", "--difficulty")
+            .choices("EASY", "MEDIUM", "HARD")
+            .setDefault("EASY")
+            .help("difficulty (board size + fleet) of every game");
+        parser.addArgument("-o", "--opponents")
+            .nargs("+")
+            .setDefault(java.util.Arrays.asList(OPPONENTS))
+            .help("fully-qualified classes of the opponents to play against");
+        parser.addArgument("-p", "--parallelism")
+            .type(Integer.class)
+            .setDefault(Runtime.getRuntime().availableProcessors())
+            .help("number of games to run at once");
+        parser.addArgument("-m", "--targetingMode")
+            .choices("DENSITY", "MONTE_CARLO")
+            .setDefault("DENSITY")
+            .help("ProbabilisticAgent targeting mode");
+        parser.addArgument("-b", "--sampleBudgetMS")
+            .type(Long.class)
+            .setDefault(ProbabilisticAgent.DEFAULT_SAMPLE_BUDGET_MS)
+            .help("per-move sampling budget for MONTE_CARLO targeting");
+        parser.addArgument("-t", "--thinkingTimeInMS")
+            .type(Long.class)
+            .setDefault(480000L)
+            .help("total thinking time (in milliseconds) for each agent in a game");
+        parser.addArgument("-s", "--seed")
+            .type(Long.class)
+            .setDefault(12345L)
+            .help("seed for ProbabilisticAgent's sampler");
+        parser.addArgument("-v", "--verbose")
+            .action(Arguments.storeTrue())
+            .help("keep the agents' per-move stdout logging (off by default, it dominates runtime)");
+        Namespace ns = parser.parseArgsOrFail(args);
+
+        final int numGames = ns.getInt("numGames");
+        final Difficulty difficulty = Difficulty.valueOf(ns.getString("difficulty"));
+        final List<String> opponents = ns.getList("opponents");
+        final TargetingMode targetingMode = TargetingMode.valueOf(ns.getString("targetingMode"));
+        final long sampleBudgetMS = ns.getLong("sampleBudgetMS");
+        final long thinkingTimeInMS = ns.getLong("thinkingTimeInMS");
+        final SplittableRandom seeds = new SplittableRandom(ns.getLong("seed"));
+
+        PrintStream out = System.out;
+        if (!ns.getBoolean("verbose")) {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(ns.getInt("parallelism"));
+        try {
+            for (String opponentClass : opponents) {
+                List<Future<GameResult>> futures = new ArrayList<Future<GameResult>>(numGames);
+                long start = System.nanoTime();
+                for (int gameIdx = 0; gameIdx < numGames; gameIdx++) {
+                    final SplittableRandom random = seeds.split();
+                    futures.add(workers.submit(() -> playGame(
+                        difficulty,
+                        new ProbabilisticAgent("ProbabilisticAgent", targetingMode, sampleBudgetMS,
+                                               ForkJoinPool.commonPool(), random),
+                        opponentClass,
+                        thinkingTimeInMS)));
+                }
+
+                int numWins = 0;
+                long shotsInWins = 0;
+                LatencyHistogram latencies = new LatencyHistogram();
+                for (Future<GameResult> future : futures) {
+                    GameResult result = future.get();
+                    if (result.getWon()) {
+                        numWins++;
+                        shotsInWins += result.getNumShots();
+                    }
+                    latencies.add(result.getLatencies());
+                }
+                double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+
+                out.println("[INFO] Tournament: ProbabilisticAgent (" + targetingMode + ") vs " + opponentClass
+                    + " on " + difficulty);
+                out.println(String.format("    games=%d  games/sec=%.2f  winRate=%.3f  avgShotsToWin=%.2f",
+                    numGames, numGames / elapsedSeconds, (double) numWins / numGames,
+                    (numWins == 0) ? Double.NaN : (double) shotsInWins / numWins));
+                out.println(String.format("    makeMove latency (us): moves=%d  p50=%.3f  p99=%.3f  max=%.3f",
+                    latencies.getTotalCount(), latencies.getValueAtPercentile(50) / 1e3,
+                    latencies.getValueAtPercentile(99) / 1e3, latencies.getMaxValue() / 1e3));
+                latencies.printBuckets(out, 1e3, "us");
+            }
+        } finally {
+            workers.shutdownNow();
+            System.setOut(out);
+        }
+        // staff agents may leave non-daemon threads behind
+        System.exit(0);
+    }
+}
@@ -1,184 +1,807 @@
 package src.pas.battleship.agents;
 
-import java.util.Map;
-
 // SYSTEM IMPORTS
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 // JAVA PROJECT IMPORTS
-import java.util.Map;
 import edu.bu.battleship.agents.Agent;
 import edu.bu.battleship.game.Game.GameView;
 import edu.bu.battleship.game.EnemyBoard.Outcome;
 import edu.bu.battleship.utils.Coordinate;
-import edu.bu.battleship.game.EnemyBoard;
-import edu.bu.battleship.game.Game;
-import edu.bu.battleship.game.ships.Ship;
 import edu.bu.battleship.game.ships.Ship.ShipType;
 
 public class ProbabilisticAgent extends Agent {
 
-    public ProbabilisticAgent(String name) {
-        super(name);
-        System.out.println("[INFO] ProbabilisticAgent.ProbabilisticAgent: constructed agent");
+    public static final int LARGEST_BOAT_SIZE = 5;
+    public static final long DEFAULT_SAMPLE_BUDGET_MS = 50;
+
+    /**
+     * DENSITY counts legal placements per ship type independently (cheap, ignores how HITs cluster).
+     * MONTE_CARLO samples whole fleet layouts that agree with every HIT/MISS/SUNK cell and shoots where
+     * the sampled ships land most often.
+     */
+    public enum TargetingMode {
+        DENSITY,
+        MONTE_CARLO
     }
 
-    @Override
-    public Coordinate makeMove(final GameView game) {
-        int columns = game.getGameConstants().getNumCols();
-        int rows = game.getGameConstants().getNumRows();
+    /**
+     * Per-shot logging is DEBUG, so bulk simulations don't pay for building a string every move. Pick the level
+     * with -Dbattleship.logLevel=debug.
+     */
+    public enum LogLevel {
+        NONE,
+        INFO,
+        DEBUG
+    }
 
-        int[][] coord_counter = new int[rows][columns];
-        Map<ShipType, Integer> ships = game.getEnemyShipTypeToNumRemaining();
-        
-        // finding total combinations
-        int boardsize = columns * rows; 
-        int totalCombinations = 1;
-
-        for (Ship.ShipType ship : ships.keySet()) {
-            int numRemaining = ships.get(ship);
-            
-            int shipSize = ship.size(); 
-            int requiredCells = shipSize * numRemaining;
-            
-            // Calculate the number of cells remaining on the board
-            int remainingCells = boardsize - requiredCells;
-            
-            // Calculate the number of combinations for this ship type
-            int combinations = remainingCells + 1;
-            
-            // Update the total combinations
-            totalCombinations *= combinations;
-        }
-
-        for (Ship.ShipType ship : ships.keySet()) {
-            if (ships.get(ship) == 0) {
-                continue;
-            }
-
-            EnemyBoard.Outcome[][] board = game.getEnemyBoardView();
-
-            for (int row = 0; row < rows; row++) {
-                for (int col = 0; col < columns; col++) {
-                    if (board[row][col] == Outcome.UNKNOWN || board[row][col] == Outcome.HIT) {
-                        int hori_combo = 0;
-                        int vert_combo = 0;
-                        final int LARGEST_BOAT_SIZE = 5;
-
-                        // check horizontal combinations
-                        for (int i = col; i < columns; i++) {
-                            if (hori_combo == LARGEST_BOAT_SIZE) {
-                                break;
-                            }
-
-                            // if inbound
-                            if (board[row][i] == Outcome.UNKNOWN || board[row][i] == Outcome.HIT) {
-                                hori_combo++;
-                            } else {
-                                break;
-                            }
-                        }
+    public static final LogLevel LOG_LEVEL =
+        LogLevel.valueOf(System.getProperty("battleship.logLevel", "info").toUpperCase());
 
-                        // check vertical combinations
-                        for (int i = row; i < rows; i++) {
-                            if (vert_combo == LARGEST_BOAT_SIZE) {
-                                break;
-                            }
-
-                            // if inbound
-                            if (board[i][col] == Outcome.UNKNOWN || board[i][col] == Outcome.HIT) {
-                                vert_combo++;
-                            } else {
-                                break;
-                            }
-                        }
+    public static boolean isLoggable(LogLevel level) {
+        return level != LogLevel.NONE && LOG_LEVEL.compareTo(level) >= 0;
+    }
 
-                        // VALID COMBINATION CODE 
-                        // patrol
-                        int numPatrol = ships.get(Ship.ShipType.PATROL_BOAT);
-                        if (hori_combo == 2) {
-                            for (int i = row; i <= col + 1 && i < rows; i++) {
-                                coord_counter[i][col] += numPatrol;
-                            }
-                        }
-                        if (vert_combo >= 2) {
-                            for (int i = col; i <= col + 1 && i < col; i++) {
-                                coord_counter[row][i] += numPatrol;
-                            }
-                        }
+    // ShipType.values() clones its array on every call
+    private static final ShipType[] SHIP_TYPES = ShipType.values();
+    private static final int[][] DIRS = new int[][]{{-1, 0}, {+1, 0}, {0, -1}, {0, +1}};
 
-                        // aircraft
-                        int numAircraft = ships.get(Ship.ShipType.AIRCRAFT_CARRIER);
-                        if (hori_combo == 5) {
-                            for (int i = row; i <= col + 1 && i < rows; i++) {
-                                coord_counter[i][col] += numAircraft;
-                            }
-                        }
-                        if (vert_combo >= 5) {
-                            for (int i = col; i <= col + 1 && i < col; i++) {
-                                coord_counter[row][i] += numAircraft;
-                            }
-                        }
+    // ship lengths indexed by ShipType.ordinal()
+    private static final int[] SHIP_SIZES = new int[SHIP_TYPES.length];
+    static {
+        for (ShipType ship : SHIP_TYPES) {
+            SHIP_SIZES[ship.ordinal()] = getShipSize(ship);
+        }
+    }
 
-                        // battleship
-                        int numBship = ships.get(Ship.ShipType.BATTLESHIP);
-                        if (hori_combo == 4) {
-                            for (int i = row; i <= col + 1 && i < rows; i++) {
-                                coord_counter[i][col] += numBship;
-                            }
-                        }
-                        if (vert_combo >= 4) {
-                            for (int i = col; i <= col + 1 && i < col; i++) {
-                                coord_counter[row][i] += numBship;
-                            }
-                        }
+    public static int getShipSize(ShipType ship) {
+        switch (ship) {
+            case AIRCRAFT_CARRIER:
+                return 5;
+            case BATTLESHIP:
+                return 4;
+            case DESTROYER:
+            case SUBMARINE:
+                return 3;
+            case PATROL_BOAT:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Bitboard view of the enemy board: one long[] bitset per Outcome, bit (row * columns + col).
+     *
+     * The point is placement validity. A ship of length k anchored at cell i is legal iff cells i, i + step, ...,
+     * i + (k - 1) * step are all open (UNKNOWN or HIT), where step is 1 (horizontal) or columns (vertical). For all
+     * anchors at once that is open & (open >>> step) & ... & (open >>> (k - 1) * step), masked so horizontal ships
+     * do not wrap into the next row; vertical ships that run off the bottom pick up the zero padding past the last
+     * cell and drop out on their own. That is k - 1 shift-and-ANDs over ceil(rows * columns / 64) words instead of
+     * k enum comparisons per anchor.
+     */
+    public static class BitBoard {
+        private final int rows;
+        private final int columns;
+        private final int numCells;
+
+        private final long[] unknown;
+        private final long[] hit;
+        private final long[] miss;
+        private final long[] sunk;
+
+        // [k] -> anchors whose column leaves room for a horizontal ship of length k
+        private final long[][] horizontalFits;
+
+        public BitBoard(int rows, int columns) {
+            this.rows = rows;
+            this.columns = columns;
+            this.numCells = rows * columns;
+
+            int numWords = (this.numCells + 63) >>> 6;
+            this.unknown = new long[numWords];
+            this.hit = new long[numWords];
+            this.miss = new long[numWords];
+            this.sunk = new long[numWords];
+
+            this.horizontalFits = new long[LARGEST_BOAT_SIZE + 1][numWords];
+            for (int size = 1; size <= LARGEST_BOAT_SIZE; size++) {
+                for (int row = 0; row < rows; row++) {
+                    for (int col = 0; col + size <= columns; col++) {
+                        setBit(this.horizontalFits[size], row * columns + col);
+                    }
+                }
+            }
+        }
+
+        public int getNumRows() { return this.rows; }
+        public int getNumCols() { return this.columns; }
+        public int getNumCells() { return this.numCells; }
+        public int getNumWords() { return this.unknown.length; }
+
+        public long[] getUnknown() { return this.unknown; }
+        public long[] getHit() { return this.hit; }
+        public long[] getMiss() { return this.miss; }
+        public long[] getSunk() { return this.sunk; }
+
+        public void load(Outcome[][] board) {
+            Arrays.fill(this.unknown, 0L);
+            Arrays.fill(this.hit, 0L);
+            Arrays.fill(this.miss, 0L);
+            Arrays.fill(this.sunk, 0L);
+            for (int row = 0; row < this.rows; row++) {
+                for (int col = 0; col < this.columns; col++) {
+                    setBit(this.getBits(board[row][col]), row * this.columns + col);
+                }
+            }
+        }
+
+        public Outcome getOutcome(int cell) {
+            if (isSet(this.unknown, cell)) {
+                return Outcome.UNKNOWN;
+            } else if (isSet(this.hit, cell)) {
+                return Outcome.HIT;
+            } else if (isSet(this.miss, cell)) {
+                return Outcome.MISS;
+            }
+            return Outcome.SUNK;
+        }
+
+        public void setOutcome(int cell, Outcome outcome) {
+            clearBit(this.unknown, cell);
+            clearBit(this.hit, cell);
+            clearBit(this.miss, cell);
+            clearBit(this.sunk, cell);
+            setBit(this.getBits(outcome), cell);
+        }
+
+        public boolean isOpen(int cell) {
+            return isSet(this.unknown, cell) || isSet(this.hit, cell);
+        }
+
+        /**
+         * Write the anchors of every legal placement of a ship of length size into dst. scratch must be the same
+         * length as dst.
+         */
+        public long[] getLegalAnchors(int size, boolean horizontal, long[] dst, long[] scratch) {
+            int step = horizontal ? 1 : this.columns;
+            for (int w = 0; w < dst.length; w++) {
+                dst[w] = this.unknown[w] | this.hit[w];
+            }
+            for (int i = 1; i < size; i++) {
+                // scratch = open >>> (i * step), i.e. scratch bit j = open bit (j + i * step)
+                int shift = i * step;
+                int wordShift = shift >>> 6;
+                int bitShift = shift & 63;
+                for (int w = 0; w < dst.length; w++) {
+                    int src = w + wordShift;
+                    long lo = (src < dst.length) ? (this.unknown[src] | this.hit[src]) : 0L;
+                    long hi = (src + 1 < dst.length) ? (this.unknown[src + 1] | this.hit[src + 1]) : 0L;
+                    scratch[w] = (bitShift == 0) ? lo : (lo >>> bitShift) | (hi << (64 - bitShift));
+                }
+                for (int w = 0; w < dst.length; w++) {
+                    dst[w] &= scratch[w];
+                }
+            }
+            if (horizontal) {
+                long[] fits = this.horizontalFits[size];
+                for (int w = 0; w < dst.length; w++) {
+                    dst[w] &= fits[w];
+                }
+            }
+            return dst;
+        }
+
+        private long[] getBits(Outcome outcome) {
+            switch (outcome) {
+                case UNKNOWN:
+                    return this.unknown;
+                case HIT:
+                    return this.hit;
+                case MISS:
+                    return this.miss;
+                default:
+                    return this.sunk;
+            }
+        }
+
+        public static boolean isSet(long[] bits, int i) { return (bits[i >>> 6] & (1L << i)) != 0; }
+        public static void setBit(long[] bits, int i) { bits[i >>> 6] |= (1L << i); }
+        public static void clearBit(long[] bits, int i) { bits[i >>> 6] &= ~(1L << i); }
+
+        /**
+         * @return the index of the first set bit at or after from, or -1 if there is none.
+         */
+        public static int nextSetBit(long[] bits, int from) {
+            int w = from >>> 6;
+            if (w >= bits.length) {
+                return -1;
+            }
+            long word = bits[w] & (-1L << from);
+            while (true) {
+                if (word != 0) {
+                    return (w << 6) + Long.numberOfTrailingZeros(word);
+                }
+                if (++w == bits.length) {
+                    return -1;
+                }
+                word = bits[w];
+            }
+        }
+    }
+
+    /**
+     * Persistent placement density over the enemy board.
+     *
+     * For every ship type we remember which placements (anchor cell + orientation) are still legal, i.e. cover
+     * no MISS or SUNK cell, and how many legal placements cover each cell. density[cell] is the sum over ship
+     * types of (ships of that type remaining) * (legal placements of that type covering the cell).
+     *
+     * Instead of recounting every run on every move, the agent tells the density which cells changed since the
+     * last GameView (the cell it just shot, plus the rest of a ship when that shot sank it). Blocking a cell only
+     * touches the placements that overlap it, so a move costs O(placements invalidated) rather than
+     * O(rows * cols * ship types). The observed board and the legal placements are kept as bitboards.
+     */
+    public static class PlacementDensity {
+        private static final int HORIZONTAL = 0;
+        private static final int VERTICAL = 1;
+
+        private final int rows;
+        private final int columns;
+
+        private final BitBoard observed;      // last outcomes we accounted for
+        private final long[][][] legal;       // [ship ordinal][orientation] -> bitset of legal anchors
+        private final int[][] coverage;       // [ship ordinal][cell] -> # legal placements covering cell
+        private final int[] numRemaining;     // [ship ordinal]
+        private final long[] density;         // [cell]
+        private final long[] scratch;
+
+        public PlacementDensity(int rows, int columns) {
+            this.rows = rows;
+            this.columns = columns;
+
+            int numCells = rows * columns;
+            int numShipTypes = SHIP_TYPES.length;
+            this.observed = new BitBoard(rows, columns);
+            this.legal = new long[numShipTypes][2][this.observed.getNumWords()];
+            this.coverage = new int[numShipTypes][numCells];
+            this.numRemaining = new int[numShipTypes];
+            this.density = new long[numCells];
+            this.scratch = new long[this.observed.getNumWords()];
+        }
+
+        public int getNumRows() { return this.rows; }
+        public int getNumCols() { return this.columns; }
+        public long getDensity(int row, int col) { return this.density[row * this.columns + col]; }
+        public Outcome getObserved(int row, int col) { return this.observed.getOutcome(row * this.columns + col); }
+        public BitBoard getBitBoard() { return this.observed; }
+
+        /**
+         * Recount everything from the board. Only needed at the start of a game (or if we ever lose track of
+         * the board), afterwards use observe(...) / setNumRemaining(...).
+         */
+        public void rebuild(Outcome[][] board, Map<ShipType, Integer> ships) {
+            this.observed.load(board);
+            Arrays.fill(this.density, 0L);
+
+            for (ShipType ship : SHIP_TYPES) {
+                int t = ship.ordinal();
+                Integer remaining = ships.get(ship);
+                this.numRemaining[t] = (remaining == null) ? 0 : remaining;
+                Arrays.fill(this.coverage[t], 0);
+
+                for (int orientation = HORIZONTAL; orientation <= VERTICAL; orientation++) {
+                    long[] anchors = this.observed.getLegalAnchors(SHIP_SIZES[t], orientation == HORIZONTAL,
+                                                                   this.legal[t][orientation], this.scratch);
+                    for (int anchor = BitBoard.nextSetBit(anchors, 0); anchor >= 0;
+                         anchor = BitBoard.nextSetBit(anchors, anchor + 1)) {
+                        this.addCoverage(t, orientation, anchor, +1);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Account for a (possibly) new outcome at (row, col). Transitions into MISS or SUNK invalidate every
+         * placement through the cell; UNKNOWN -> HIT keeps every placement legal so nothing needs to change.
+         */
+        public void observe(int row, int col, Outcome outcome) {
+            int cell = row * this.columns + col;
+            Outcome previous = this.observed.getOutcome(cell);
+            if (previous == outcome) {
+                return;
+            }
+            boolean wasOpen = this.observed.isOpen(cell);
+            this.observed.setOutcome(cell, outcome);
+
+            if (wasOpen && !this.observed.isOpen(cell)) {
+                this.block(row, col);
+            }
+        }
+
+        public void setNumRemaining(ShipType ship, int remaining) {
+            this.setNumRemaining(ship.ordinal(), remaining);
+        }
+
+        public void setNumRemaining(int t, int remaining) {
+            int delta = remaining - this.numRemaining[t];
+            if (delta == 0) {
+                return;
+            }
+            this.numRemaining[t] = remaining;
+
+            // rare (once per sunk ship), so a full pass over this ship's coverage is fine
+            int[] shipCoverage = this.coverage[t];
+            for (int cell = 0; cell < shipCoverage.length; cell++) {
+                this.density[cell] += (long) delta * shipCoverage[cell];
+            }
+        }
+
+        /**
+         * @return the UNKNOWN cell (row * columns + col) with the largest density, or -1 if no cell is UNKNOWN.
+         */
+        public int getBestCell() {
+            int bestCell = -1;
+            long maxCount = -1;
+            long[] unknown = this.observed.getUnknown();
+            for (int cell = BitBoard.nextSetBit(unknown, 0); cell >= 0; cell = BitBoard.nextSetBit(unknown, cell + 1)) {
+                if (this.density[cell] > maxCount) {
+                    maxCount = this.density[cell];
+                    bestCell = cell;
+                }
+            }
+            return bestCell;
+        }
+
+        private void block(int row, int col) {
+            for (int t = 0; t < SHIP_SIZES.length; t++) {
+                int size = SHIP_SIZES[t];
+                for (int offset = 0; offset < size; offset++) {
+                    // horizontal placements whose span includes col
+                    int anchorCol = col - offset;
+                    if (anchorCol >= 0) {
+                        this.invalidate(t, HORIZONTAL, row * this.columns + anchorCol);
+                    }
+                    // vertical placements whose span includes row
+                    int anchorRow = row - offset;
+                    if (anchorRow >= 0) {
+                        this.invalidate(t, VERTICAL, anchorRow * this.columns + col);
+                    }
+                }
+            }
+        }
+
+        private void invalidate(int t, int orientation, int anchor) {
+            long[] anchors = this.legal[t][orientation];
+            if (BitBoard.isSet(anchors, anchor)) {
+                BitBoard.clearBit(anchors, anchor);
+                this.addCoverage(t, orientation, anchor, -1);
+            }
+        }
+
+        private void addCoverage(int t, int orientation, int anchor, int sign) {
+            int step = (orientation == HORIZONTAL) ? 1 : this.columns;
+            long weight = (long) sign * this.numRemaining[t];
+            int cell = anchor;
+            for (int i = 0; i < SHIP_SIZES[t]; i++, cell += step) {
+                this.coverage[t][cell] += sign;
+                this.density[cell] += weight;
+            }
+        }
+    }
+
+    /**
+     * Monte Carlo sampler over full fleet layouts.
+     *
+     * A layout places every remaining ship so that no ship covers a MISS or SUNK cell, no two ships overlap, and
+     * every HIT cell is covered by some ship. In hunt mode (no unresolved HITs) ships are dropped uniformly at
+     * random; in target mode each uncovered HIT is first claimed by a random ship placement through it, then the
+     * rest of the fleet is dropped at random. Layouts that cannot be completed are thrown away, so every counted
+     * layout is consistent with the evidence.
+     *
+     * Sampling is split over a ForkJoinPool until a deadline. Every worker has its own SplittableRandom and its own
+     * int[] hit-frequency grid, and the grids are summed when the tasks join, so workers never share mutable state.
+     */
+    public static class FleetSampler {
+        private static final int MAX_DROP_ATTEMPTS = 256;
 
-                        // destroyer
-                        int numDestroyer = ships.get(Ship.ShipType.DESTROYER);
-                        if (hori_combo == 3) {
-                            for (int i = row; i <= col + 1 && i < rows; i++) {
-                                coord_counter[i][col] += numDestroyer;
-                            }
+        private final int rows;
+        private final int columns;
+        private final ForkJoinPool pool;
+
+        // legal anchors against MISS/SUNK for every ship length, [size][0 = horizontal, 1 = vertical]
+        private final long[][][] anchors;
+        private final long[] scratch;
+
+        public FleetSampler(int rows, int columns, ForkJoinPool pool) {
+            this.rows = rows;
+            this.columns = columns;
+            this.pool = pool;
+
+            int numWords = (rows * columns + 63) >>> 6;
+            this.anchors = new long[LARGEST_BOAT_SIZE + 1][2][numWords];
+            this.scratch = new long[numWords];
+        }
+
+        public int getNumRows() { return this.rows; }
+        public int getNumCols() { return this.columns; }
+        public ForkJoinPool getPool() { return this.pool; }
+
+        /**
+         * @return per-cell count of sampled layouts that put a ship on the cell, with the number of accepted layouts
+         *         stored in the extra last slot.
+         */
+        public int[] sample(BitBoard board, int[] numRemaining, long budgetMS, SplittableRandom random) {
+            long[][][] anchors = this.anchors;
+            for (int size = 1; size <= LARGEST_BOAT_SIZE; size++) {
+                board.getLegalAnchors(size, true, anchors[size][0], this.scratch);
+                board.getLegalAnchors(size, false, anchors[size][1], this.scratch);
+            }
+
+            long[] hitBits = board.getHit();
+            int numHits = 0;
+            for (long word : hitBits) {
+                numHits += Long.bitCount(word);
+            }
+            int[] hits = new int[numHits];
+            for (int cell = BitBoard.nextSetBit(hitBits, 0), i = 0; cell >= 0;
+                 cell = BitBoard.nextSetBit(hitBits, cell + 1)) {
+                hits[i++] = cell;
+            }
+
+            // fleet as a list of ship lengths, largest first (big ships are the hardest to fit)
+            int fleetSize = 0;
+            for (int remaining : numRemaining) {
+                fleetSize += remaining;
+            }
+            int[] fleet = new int[fleetSize];
+            for (int size = LARGEST_BOAT_SIZE, i = 0; size > 0; size--) {
+                for (int t = 0; t < numRemaining.length; t++) {
+                    if (SHIP_SIZES[t] == size) {
+                        for (int n = 0; n < numRemaining[t]; n++) {
+                            fleet[i++] = size;
                         }
-                        if (vert_combo >= 3) {
-                            for (int i = col; i <= col + 1 && i < col; i++) {
-                                coord_counter[row][i] += numDestroyer;
-                            }
+                    }
+                }
+            }
+
+            long deadline = System.nanoTime() + budgetMS * 1_000_000L;
+            SampleTask task = new SampleTask(this, anchors, hits, fleet, deadline, random,
+                                             this.getPool().getParallelism());
+            return this.getPool().invoke(task);
+        }
+
+        private static class SampleTask extends RecursiveTask<int[]> {
+            private static final long serialVersionUID = 1L;
+
+            private final FleetSampler sampler;
+            private final long[][][] anchors;
+            private final int[] hits;
+            private final int[] fleet;
+            private final long deadline;
+            private final SplittableRandom random;
+            private final int numWorkers;
+
+            SampleTask(FleetSampler sampler, long[][][] anchors, int[] hits, int[] fleet, long deadline,
+                       SplittableRandom random, int numWorkers) {
+                this.sampler = sampler;
+                this.anchors = anchors;
+                this.hits = hits;
+                this.fleet = fleet;
+                this.deadline = deadline;
+                this.random = random;
+                this.numWorkers = numWorkers;
+            }
+
+            @Override
+            protected int[] compute() {
+                if (this.numWorkers <= 1) {
+                    return this.sampler.sampleUntil(this.anchors, this.hits, this.fleet, this.deadline, this.random);
+                }
+
+                int half = this.numWorkers / 2;
+                SampleTask left = new SampleTask(this.sampler, this.anchors, this.hits, this.fleet, this.deadline,
+                                                 this.random.split(), half);
+                SampleTask right = new SampleTask(this.sampler, this.anchors, this.hits, this.fleet, this.deadline,
+                                                  this.random, this.numWorkers - half);
+                left.fork();
+                int[] counts = right.compute();
+                int[] leftCounts = left.join();
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] += leftCounts[i];
+                }
+                return counts;
+            }
+        }
+
+        private int[] sampleUntil(long[][][] anchors, int[] hits, int[] fleet, long deadline,
+                                  SplittableRandom random) {
+            int numCells = this.rows * this.columns;
+            int[] counts = new int[numCells + 1];
+            boolean[] occupied = new boolean[numCells];
+            boolean[] placed = new boolean[fleet.length];
+            int[] shipCells = new int[fleet.length * LARGEST_BOAT_SIZE];
+
+            // always take at least one sample so a tiny budget still produces an answer
+            do {
+                for (int batch = 0; batch < 64; batch++) {
+                    int numShipCells = this.sampleLayout(anchors, hits, fleet, random, occupied, placed, shipCells);
+                    if (numShipCells > 0) {
+                        for (int i = 0; i < numShipCells; i++) {
+                            counts[shipCells[i]]++;
                         }
+                        counts[numCells]++;
+                    }
+                }
+            } while (System.nanoTime() < deadline);
+            return counts;
+        }
+
+        /**
+         * Build one layout. Returns the number of ship cells written to shipCells, or -1 if the layout was rejected.
+         */
+        private int sampleLayout(long[][][] anchors, int[] hits, int[] fleet, SplittableRandom random,
+                                 boolean[] occupied, boolean[] placed, int[] shipCells) {
+            Arrays.fill(occupied, false);
+            Arrays.fill(placed, false);
+            int numShipCells = 0;
 
-                        // submarine
-                        int numSub = ships.get(Ship.ShipType.SUBMARINE);
-                        if (hori_combo == 3) {
-                            for (int i = row; i <= col + 1 && i < rows; i++) {
-                                coord_counter[i][col] += numSub;
-                            }
+            // target phase: claim every HIT with some ship
+            for (int hit : hits) {
+                if (occupied[hit]) {
+                    continue;
+                }
+                int hitRow = hit / this.columns;
+                int hitCol = hit % this.columns;
+
+                // reservoir-pick uniformly among (ship, orientation, offset) placements through this hit
+                int numCandidates = 0;
+                int chosenShip = -1, chosenRow = -1, chosenCol = -1;
+                boolean chosenHorizontal = false;
+                for (int s = 0; s < fleet.length; s++) {
+                    if (placed[s] || (s > 0 && fleet[s] == fleet[s - 1] && !placed[s - 1])) {
+                        continue;   // identical unplaced ships are interchangeable, only try the first one
+                    }
+                    int size = fleet[s];
+                    for (int offset = 0; offset < size; offset++) {
+                        if (this.canPlace(anchors, occupied, size, true, hitRow, hitCol - offset)
+                                && random.nextInt(++numCandidates) == 0) {
+                            chosenShip = s; chosenRow = hitRow; chosenCol = hitCol - offset; chosenHorizontal = true;
                         }
-                        if (vert_combo >= 3) {
-                            for (int i = col; i <= col + 1 && i < col; i++) {
-                                coord_counter[row][i] += numSub;
-                            }
+                        if (this.canPlace(anchors, occupied, size, false, hitRow - offset, hitCol)
+                                && random.nextInt(++numCandidates) == 0) {
+                            chosenShip = s; chosenRow = hitRow - offset; chosenCol = hitCol; chosenHorizontal = false;
                         }
                     }
                 }
+                if (chosenShip < 0) {
+                    return -1;
+                }
+                placed[chosenShip] = true;
+                numShipCells = this.place(occupied, fleet[chosenShip], chosenHorizontal, chosenRow, chosenCol,
+                                          shipCells, numShipCells);
             }
-        }
 
-        int max_count = 0;
-        Coordinate max_coord = new Coordinate(0, 0);
+            // hunt phase: drop the rest of the fleet anywhere legal
+            for (int s = 0; s < fleet.length; s++) {
+                if (placed[s]) {
+                    continue;
+                }
+                int size = fleet[s];
+                // like PlacementDensity, skip an orientation the ship is too long for
+                boolean fitsHorizontal = size <= this.columns;
+                boolean fitsVertical = size <= this.rows;
+                if (!fitsHorizontal && !fitsVertical) {
+                    return -1;
+                }
+                boolean done = false;
+                for (int attempt = 0; attempt < MAX_DROP_ATTEMPTS && !done; attempt++) {
+                    boolean horizontal = fitsHorizontal && (!fitsVertical || random.nextBoolean());
+                    int row = random.nextInt(horizontal ? this.rows : this.rows - size + 1);
+                    int col = random.nextInt(horizontal ? this.columns - size + 1 : this.columns);
+                    if (this.canPlace(anchors, occupied, size, horizontal, row, col)) {
+                        numShipCells = this.place(occupied, size, horizontal, row, col, shipCells, numShipCells);
+                        done = true;
+                    }
+                }
+                if (!done) {
+                    return -1;
+                }
+                placed[s] = true;
+            }
+            return numShipCells;
+        }
 
-        for (int row = 0; row < rows; row++) {
-            for (int col = 0; col < columns; col++) {
-                if (coord_counter[row][col] > max_count) {
-                    max_count = coord_counter[row][col];
-                    max_coord = new Coordinate(row, col);
+        private boolean canPlace(long[][][] anchors, boolean[] occupied, int size, boolean horizontal,
+                                 int row, int col) {
+            if (row < 0 || col < 0 || row >= this.rows || col >= this.columns) {
+                return false;
+            }
+            int cell = row * this.columns + col;
+            if (!BitBoard.isSet(anchors[size][horizontal ? 0 : 1], cell)) {
+                return false;   // runs off the board or over a MISS/SUNK
+            }
+            int step = horizontal ? 1 : this.columns;
+            for (int i = 0; i < size; i++, cell += step) {
+                if (occupied[cell]) {
+                    return false;
                 }
             }
+            return true;
+        }
+
+        private int place(boolean[] occupied, int size, boolean horizontal, int row, int col,
+                          int[] shipCells, int numShipCells) {
+            int step = horizontal ? 1 : this.columns;
+            int cell = row * this.columns + col;
+            for (int i = 0; i < size; i++, cell += step) {
+                occupied[cell] = true;
+                shipCells[numShipCells++] = cell;
+            }
+            return numShipCells;
+        }
+    }
+
+    private PlacementDensity placementDensity;
+    private Coordinate lastAttack;
+    private FleetSampler fleetSampler;
+    private final int[] numRemaining;     // scratch, [ship ordinal]
+
+    private final TargetingMode targetingMode;
+    private final long sampleBudgetMS;
+    private final ForkJoinPool pool;
+    private final SplittableRandom random;
+
+    /**
+     * Constructor used by edu.bu.battleship.Main. The targeting mode and per-move sampling budget can be picked
+     * with -Dbattleship.targeting=monte_carlo and -Dbattleship.sampleBudgetMS=<ms>.
+     */
+    public ProbabilisticAgent(String name) {
+        this(name,
+             TargetingMode.valueOf(System.getProperty("battleship.targeting", "density").toUpperCase()),
+             Long.getLong("battleship.sampleBudgetMS", DEFAULT_SAMPLE_BUDGET_MS),
+             ForkJoinPool.commonPool(),
+             new SplittableRandom());
+    }
+
+    public ProbabilisticAgent(String name, TargetingMode targetingMode, long sampleBudgetMS,
+                              ForkJoinPool pool, SplittableRandom random) {
+        super(name);
+        this.placementDensity = null;
+        this.lastAttack = null;
+        this.fleetSampler = null;
+        this.numRemaining = new int[SHIP_TYPES.length];
+        this.targetingMode = targetingMode;
+        this.sampleBudgetMS = sampleBudgetMS;
+        this.pool = pool;
+        this.random = random;
+        if (isLoggable(LogLevel.INFO)) {
+            System.out.println("[INFO] ProbabilisticAgent.ProbabilisticAgent: constructed agent (" + targetingMode + ")");
         }
+    }
+
+    public PlacementDensity getPlacementDensity() { return this.placementDensity; }
+    public final TargetingMode getTargetingMode() { return this.targetingMode; }
+    public final long getSampleBudgetMS() { return this.sampleBudgetMS; }
 
-        System.out.println("ATTACKING: " + max_coord);
+    @Override
+    public Coordinate makeMove(final GameView game) {
+        this.updatePlacementDensity(game);
+
+        int best = -1;
+        if (this.getTargetingMode() == TargetingMode.MONTE_CARLO) {
+            best = this.getMonteCarloCell(game);
+        }
+        if (best < 0) {
+            best = this.getPlacementDensity().getBestCell();
+        }
+
+        // the only object we create on the DENSITY path
+        int columns = this.getPlacementDensity().getNumCols();
+        Coordinate max_coord = (best < 0) ? new Coordinate(0, 0) : new Coordinate(best / columns, best % columns);
+
+        this.lastAttack = max_coord;
+        if (isLoggable(LogLevel.DEBUG)) {
+            System.out.println("ATTACKING: " + max_coord);
+        }
         return max_coord;
     }
 
+    /**
+     * Argmax of the sampled hit frequency over UNKNOWN cells, or -1 if no layout could be sampled (in which case
+     * we fall back to the placement density).
+     */
+    private int getMonteCarloCell(final GameView game) {
+        int columns = game.getGameConstants().getNumCols();
+        int rows = game.getGameConstants().getNumRows();
+        if (this.fleetSampler == null || this.fleetSampler.getNumRows() != rows
+                || this.fleetSampler.getNumCols() != columns) {
+            this.fleetSampler = new FleetSampler(rows, columns, this.pool);
+        }
+
+        int[] numRemaining = this.numRemaining;
+        Map<ShipType, Integer> ships = game.getEnemyShipTypeToNumRemaining();
+        for (ShipType ship : SHIP_TYPES) {
+            Integer remaining = ships.get(ship);
+            numRemaining[ship.ordinal()] = (remaining == null) ? 0 : remaining;
+        }
+
+        // never spend more than a quarter of whatever clock we have left on one move
+        long budgetMS = Math.max(1, Math.min(this.getSampleBudgetMS(), game.getTimeLeftInMS() / 4));
+        // the placement density was just synced with this GameView, so its bitboard is current
+        BitBoard board = this.getPlacementDensity().getBitBoard();
+        int[] counts = this.fleetSampler.sample(board, numRemaining, budgetMS, this.random.split());
+        if (counts[rows * columns] == 0) {
+            return -1;
+        }
+
+        int bestCell = -1;
+        int maxCount = -1;
+        long[] unknown = board.getUnknown();
+        for (int cell = BitBoard.nextSetBit(unknown, 0); cell >= 0; cell = BitBoard.nextSetBit(unknown, cell + 1)) {
+            if (counts[cell] > maxCount) {
+                maxCount = counts[cell];
+                bestCell = cell;
+            }
+        }
+        return bestCell;
+    }
+
+    /**
+     * Bring the placement density up to date with the GameView. The only cells that can change between two of
+     * our moves are the one we attacked and, if that attack sank a ship, the other cells of that ship (they go
+     * from HIT to SUNK). A sunk ship lies on a straight line through the attacked cell, so we only need to walk
+     * at most LARGEST_BOAT_SIZE - 1 cells in each direction.
+     */
+    private void updatePlacementDensity(final GameView game) {
+        int columns = game.getGameConstants().getNumCols();
+        int rows = game.getGameConstants().getNumRows();
+        Outcome[][] board = game.getEnemyBoardView();
+        Map<ShipType, Integer> ships = game.getEnemyShipTypeToNumRemaining();
+
+        PlacementDensity density = this.getPlacementDensity();
+        if (density == null || density.getNumRows() != rows || density.getNumCols() != columns) {
+            density = new PlacementDensity(rows, columns);
+            this.placementDensity = density;
+            this.lastAttack = null;
+        }
+        if (this.lastAttack == null) {
+            // first move of a game: reuse the arrays if the board size didn't change
+            density.rebuild(board, ships);
+            return;
+        }
+
+        int row = this.lastAttack.getXCoordinate();
+        int col = this.lastAttack.getYCoordinate();
+        Outcome outcome = board[row][col];
+        density.observe(row, col, outcome);
+
+        if (outcome == Outcome.SUNK) {
+            for (int[] dir : DIRS) {
+                for (int i = 1; i < LARGEST_BOAT_SIZE; i++) {
+                    int r = row + dir[0] * i;
+                    int c = col + dir[1] * i;
+                    if (r < 0 || r >= rows || c < 0 || c >= columns || board[r][c] != Outcome.SUNK) {
+                        break;
+                    }
+                    density.observe(r, c, Outcome.SUNK);
+                }
+            }
+        }
+
+        for (ShipType ship : SHIP_TYPES) {
+            Integer remaining = ships.get(ship);
+            density.setNumRemaining(ship.ordinal(), (remaining == null) ? 0 : remaining);
+        }
+    }
+
     @Override
     public void afterGameEnds(final GameView game) {
+        // next game starts from a fresh board (the density's arrays are kept and rebuilt in place)
+        this.lastAttack = null;
     }
 }
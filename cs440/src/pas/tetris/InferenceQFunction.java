@@ -0,0 +1,373 @@
+package src.pas.tetris;
+
+
+// SYSTEM IMPORTS
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+// JAVA PROJECT IMPORTS
+import edu.bu.tetris.linalg.Matrix;
+import edu.bu.tetris.nn.Model;
+import edu.bu.tetris.nn.Module;
+import edu.bu.tetris.nn.layers.Dense;
+import edu.bu.tetris.nn.layers.ReLU;
+import src.pas.tetris.agents.TetrisQAgent;
+
+
+/**
+ * An inference-only copy of a Dense/ReLU q-function, for picking moves when only the argmax over the candidates
+ * matters.
+ *
+ * Every Dense layer is exported as float weights and activations (FLOAT), with a ReLU right after a Dense fused into
+ * that layer's loop; bench.pas.tetris.InferenceQFunctionBenchmark checks that it picks the same action as the
+ * Sequential. Int8 weights were tried and dropped: the best two candidates' Q-values are often within 0.1% of each
+ * other, and even per-row int8 scales flipped the argmax in ~1 state in 5. The forward pass runs out of two scratch
+ * buffers that only grow, so a steady stream of decisions allocates nothing.
+ *
+ * Each layer is computed as out[r] = b + sum_i x[r][i] * W[i], one saxpy per input over a row of W (the (in, out)
+ * layout Dense already uses). The inner loop has no reduction, so C2 can vectorize it, and inputs that are exactly
+ * zero (most of the board image) are skipped.
+ *
+ * File layout (all little-endian):
+ *
+ *     int     MAGIC ("TQIF")
+ *     int     VERSION
+ *     int     precision (Precision.ordinal())
+ *     int     numLayers
+ *     per layer: int inDim, int outDim, int relu (0/1), inDim * outDim float weights (row-major),
+ *                outDim float biases
+ *
+ * From cs440/, export a trained model with:
+ *
+ *     java -cp "lib/*:." src.pas.tetris.InferenceQFunction params/BEST.model params/BEST.float
+ */
+public class InferenceQFunction
+    extends Object
+{
+
+    public static final int MAGIC = 0x46495154;     // "TQIF" when read as little-endian bytes
+    public static final int VERSION = 2;
+
+    public static enum Precision
+    {
+        FLOAT;
+    }
+
+    /**
+     * One exported Dense layer (and the ReLU after it, if any).
+     */
+    public static class DenseLayer
+        extends Object
+    {
+        private final int inDim;
+        private final int outDim;
+        private final boolean relu;
+        private final float[] weights;
+        private final float[] bias;
+
+        public DenseLayer(int inDim, int outDim, boolean relu, float[] weights, float[] bias)
+        {
+            this.inDim = inDim;
+            this.outDim = outDim;
+            this.relu = relu;
+            this.weights = weights;
+            this.bias = bias;
+        }
+
+        public final int getInDim() { return this.inDim; }
+        public final int getOutDim() { return this.outDim; }
+        public final boolean hasReLU() { return this.relu; }
+
+        public static DenseLayer export(Dense dense, boolean relu)
+        {
+            Matrix w = dense.getWeight().getValue();
+            Matrix b = dense.getBias().getValue();
+            int inDim = w.getShape().getNumRows();
+            int outDim = w.getShape().getNumCols();
+
+            float[] bias = new float[outDim];
+            for(int col = 0; col < outDim; ++col)
+            {
+                bias[col] = (float)b.get(0, col);
+            }
+
+            float[] weights = new float[inDim * outDim];
+            for(int row = 0; row < inDim; ++row)
+            {
+                for(int col = 0; col < outDim; ++col)
+                {
+                    weights[row * outDim + col] = (float)w.get(row, col);
+                }
+            }
+            return new DenseLayer(inDim, outDim, relu, weights, bias);
+        }
+
+        /**
+         * dst[r * outDim + o] for r < numRows, from src[r * inDim + i].
+         */
+        public void forward(float[] src, float[] dst, int numRows)
+        {
+            final int inDim = this.inDim;
+            final int outDim = this.outDim;
+            for(int row = 0; row < numRows; ++row)
+            {
+                final int srcOff = row * inDim;
+                final int dstOff = row * outDim;
+                System.arraycopy(this.bias, 0, dst, dstOff, outDim);
+
+                final float[] w = this.weights;
+                for(int in = 0; in < inDim; ++in)
+                {
+                    final float x = src[srcOff + in];
+                    if(x == 0f)
+                    {
+                        continue;
+                    }
+                    final int wOff = in * outDim;
+                    for(int out = 0; out < outDim; ++out)
+                    {
+                        dst[dstOff + out] += x * w[wOff + out];
+                    }
+                }
+
+                if(this.relu)
+                {
+                    for(int out = 0; out < outDim; ++out)
+                    {
+                        dst[dstOff + out] = Math.max(dst[dstOff + out], 0f);
+                    }
+                }
+            }
+        }
+
+        public int getNumBytes()
+        {
+            return 3 * Integer.BYTES + Float.BYTES * (this.weights.length + this.outDim);
+        }
+
+        public void write(ByteBuffer buffer)
+        {
+            buffer.putInt(this.inDim).putInt(this.outDim).putInt(this.relu ? 1 : 0);
+            for(float weight : this.weights)
+            {
+                buffer.putFloat(weight);
+            }
+            for(float b : this.bias)
+            {
+                buffer.putFloat(b);
+            }
+        }
+
+        public static DenseLayer read(ByteBuffer buffer)
+        {
+            int inDim = buffer.getInt();
+            int outDim = buffer.getInt();
+            boolean relu = buffer.getInt() != 0;
+            float[] weights = new float[inDim * outDim];
+            buffer.asFloatBuffer().get(weights);
+            buffer.position(buffer.position() + Float.BYTES * weights.length);
+            float[] bias = new float[outDim];
+            buffer.asFloatBuffer().get(bias);
+            buffer.position(buffer.position() + Float.BYTES * outDim);
+            return new DenseLayer(inDim, outDim, relu, weights, bias);
+        }
+    }
+
+    private final Precision precision;
+    private final DenseLayer[] layers;
+    private final int maxDim;
+    private float[] src;
+    private float[] dst;
+
+    public InferenceQFunction(Precision precision, DenseLayer[] layers)
+    {
+        this.precision = precision;
+        this.layers = layers;
+        int maxDim = 0;
+        for(DenseLayer layer : layers)
+        {
+            maxDim = Math.max(maxDim, Math.max(layer.getInDim(), layer.getOutDim()));
+        }
+        this.maxDim = maxDim;
+        this.src = new float[0];
+        this.dst = new float[0];
+    }
+
+    public final Precision getPrecision() { return this.precision; }
+    public final int getNumLayers() { return this.layers.length; }
+    public final DenseLayer getLayer(int layerIdx) { return this.layers[layerIdx]; }
+    public final int getInputDim() { return this.layers[0].getInDim(); }
+
+    /**
+     * @throws IllegalArgumentException if qFunction is not a CheckpointedSequential of Dense and ReLU layers ending
+     *                                  in a single output
+     */
+    public static InferenceQFunction export(Model qFunction, Precision precision)
+    {
+        if(!(qFunction instanceof ModelCheckpoint.CheckpointedSequential))
+        {
+            throw new IllegalArgumentException("[ERROR] InferenceQFunction.export: can only export a "
+                + "CheckpointedSequential, not a " + qFunction.getClass().getName());
+        }
+
+        List<Module> modules = ((ModelCheckpoint.CheckpointedSequential)qFunction).getModules();
+        List<DenseLayer> layers = new ArrayList<DenseLayer>();
+        for(int moduleIdx = 0; moduleIdx < modules.size(); ++moduleIdx)
+        {
+            Module module = modules.get(moduleIdx);
+            if(!(module instanceof Dense))
+            {
+                throw new IllegalArgumentException("[ERROR] InferenceQFunction.export: layer " + moduleIdx + " is a "
+                    + module.getClass().getSimpleName() + ", only Dense layers (each optionally followed by a ReLU) "
+                    + "can be exported");
+            }
+            boolean relu = moduleIdx + 1 < modules.size() && modules.get(moduleIdx + 1) instanceof ReLU;
+            layers.add(DenseLayer.export((Dense)module, relu));
+            if(relu)
+            {
+                ++moduleIdx;
+            }
+        }
+        if(layers.isEmpty() || layers.get(layers.size() - 1).getOutDim() != 1)
+        {
+            throw new IllegalArgumentException("[ERROR] InferenceQFunction.export: the q-function must end in a "
+                + "Dense layer with a single output");
+        }
+        return new InferenceQFunction(precision, layers.toArray(new DenseLayer[0]));
+    }
+
+    /**
+     * Runs rows [0, numRows) of inputs through the network and writes row r's Q-value to qValues[r].
+     */
+    public void forward(Matrix inputs, int numRows, float[] qValues)
+    {
+        float[] out = this.forward(inputs, numRows);
+        System.arraycopy(out, 0, qValues, 0, numRows);
+    }
+
+    /**
+     * @return the first row of [0, numRows) with the highest Q-value (ties go to the first, like QAgent)
+     */
+    public int argmax(Matrix inputs, int numRows)
+    {
+        float[] out = this.forward(inputs, numRows);
+        int best = 0;
+        for(int row = 1; row < numRows; ++row)
+        {
+            if(out[row] > out[best])
+            {
+                best = row;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the scratch buffer holding the Q-values in its first numRows entries
+     */
+    private float[] forward(Matrix inputs, int numRows)
+    {
+        if(this.src.length < numRows * this.maxDim)
+        {
+            this.src = new float[numRows * this.maxDim];
+            this.dst = new float[numRows * this.maxDim];
+        }
+
+        int inDim = this.getInputDim();
+        for(int row = 0; row < numRows; ++row)
+        {
+            for(int col = 0; col < inDim; ++col)
+            {
+                this.src[row * inDim + col] = (float)inputs.get(row, col);
+            }
+        }
+
+        float[] src = this.src;
+        float[] dst = this.dst;
+        for(DenseLayer layer : this.layers)
+        {
+            layer.forward(src, dst, numRows);
+            float[] tmp = src;
+            src = dst;
+            dst = tmp;
+        }
+        return src;
+    }
+
+    public int getNumBytes()
+    {
+        int numBytes = 4 * Integer.BYTES;
+        for(DenseLayer layer : this.layers)
+        {
+            numBytes += layer.getNumBytes();
+        }
+        return numBytes;
+    }
+
+    public void save(String filePath) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(this.getNumBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(this.getPrecision().ordinal()).putInt(this.layers.length);
+        for(DenseLayer layer : this.layers)
+        {
+            layer.write(buffer);
+        }
+        buffer.flip();
+        ModelCheckpoint.write(buffer, Paths.get(filePath));
+    }
+
+    public static InferenceQFunction load(String filePath) throws Exception
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(Paths.get(filePath))).order(ByteOrder.LITTLE_ENDIAN);
+        if(buffer.remaining() < 4 * Integer.BYTES || buffer.getInt() != MAGIC)
+        {
+            throw new Exception("[ERROR] InferenceQFunction.load: " + filePath + " is not an inference export");
+        }
+        int version = buffer.getInt();
+        if(version != VERSION)
+        {
+            throw new Exception("[ERROR] InferenceQFunction.load: " + filePath + " has version " + version
+                + " but only version " + VERSION + " is supported");
+        }
+        Precision precision = Precision.values()[buffer.getInt()];
+        DenseLayer[] layers = new DenseLayer[buffer.getInt()];
+        for(int layerIdx = 0; layerIdx < layers.length; ++layerIdx)
+        {
+            layers[layerIdx] = DenseLayer.read(buffer);
+        }
+        if(buffer.hasRemaining())
+        {
+            throw new Exception("[ERROR] InferenceQFunction.load: " + filePath + " has trailing bytes");
+        }
+        return new InferenceQFunction(precision, layers);
+    }
+
+    public static void main(String[] args)
+    {
+        if(args.length < 2 || args.length > 3)
+        {
+            System.err.println("usage: java src.pas.tetris.InferenceQFunction <in.model> <out> [float]");
+            System.exit(-1);
+        }
+
+        try
+        {
+            Precision precision = Precision.valueOf(args.length > 2 ? args[2].toUpperCase() : "FLOAT");
+            Model model = new TetrisQAgent("export").initQFunction();
+            model.load(args[0]);
+            InferenceQFunction qFunction = export(model, precision);
+            qFunction.save(args[1]);
+            System.out.println("[INFO] InferenceQFunction.main: exported " + args[0] + " -> " + args[1] + " ("
+                + precision + ", " + qFunction.getNumBytes() + " bytes)");
+        } catch(Exception e)
+        {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package src.pas.tetris;
+
+
+// SYSTEM IMPORTS
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// JAVA PROJECT IMPORTS
+import edu.bu.tetris.linalg.Matrix;
+import edu.bu.tetris.nn.Model;
+import edu.bu.tetris.nn.Module;
+import edu.bu.tetris.nn.Parameter;
+import edu.bu.tetris.nn.models.Sequential;
+import src.pas.tetris.agents.TetrisQAgent;
+
+
+/**
+ * Checkpoints for the q-function, in the text format a stock Sequential reads (the default) or in a binary format
+ * picked with -Dtetris.checkpointFormat=binary.
+ *
+ * Binary layout (all little-endian):
+ *
+ *     int     MAGIC ("TQCK")
+ *     int     VERSION
+ *     int     numParams
+ *     int[2]  (numRows, numCols) of every parameter, in getParameters() order
+ *     ...     zero padding up to a multiple of 8 bytes
+ *     double  every parameter's values, row-major, in getParameters() order
+ *
+ * The text format Sequential.save writes is "(rows,cols);v,v,..." per parameter, which costs a Double.parseDouble
+ * per weight to load and a Double.toString per weight to save. Loading a checkpoint maps the file and copies the
+ * doubles straight out of the mapping. (Matrix keeps its data array private, so the values are copied into the
+ * existing Parameters rather than wrapping the mapping.) Only CheckpointedSequential can load a binary file, so
+ * binary models can't go to the stock Sequential.load or the course tooling.
+ *
+ * Every file is written to a temporary sibling and renamed over the target, so a crash mid-write never leaves a
+ * truncated checkpoint behind. During training CheckpointedSequential.save only snapshots the parameters (in
+ * either format); the write happens on the AsyncWriter's background thread.
+ *
+ * From cs440/, convert text models to binary with:
+ *
+ *     java -cp "lib/*:." src.pas.tetris.ModelCheckpoint params/BEST.model params/BEST.ckpt
+ */
+public class ModelCheckpoint
+    extends Object
+{
+
+    public static final int MAGIC = 0x4b435154;     // "TQCK" when read as little-endian bytes
+    public static final int VERSION = 1;
+
+    // pick with -Dtetris.checkpointFormat=text|binary, text keeps files readable by a stock Sequential
+    public static final String FORMAT = System.getProperty("tetris.checkpointFormat", "text");
+
+    // how many per-phase checkpoints to keep on disk, oldest deleted first (0 = keep all of them)
+    public static final int KEEP_LAST = Integer.getInteger("tetris.keepLastCheckpoints", 0);
+
+    private static AsyncWriter asyncWriter = null;
+
+    public static synchronized AsyncWriter getAsyncWriter()
+    {
+        if(asyncWriter == null)
+        {
+            asyncWriter = new AsyncWriter(KEEP_LAST);
+        }
+        return asyncWriter;
+    }
+
+    /**
+     * Writes checkpoints one at a time on a background thread, in submission order, and enforces the retention
+     * policy. A shutdown hook drains pending writes so the last phase's checkpoint survives the JVM exiting.
+     */
+    public static class AsyncWriter
+        extends Object
+    {
+        private final ExecutorService executor;
+        private final int keepLast;
+        private final Deque<Path> retained;     // only touched on the writer thread
+        private Future<?> lastWrite;
+
+        public AsyncWriter(int keepLast)
+        {
+            this.executor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "tetris-checkpoint");
+                t.setDaemon(true);
+                return t;
+            });
+            this.keepLast = keepLast;
+            this.retained = new ArrayDeque<Path>();
+            this.lastWrite = null;
+
+            Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "tetris-checkpoint-drain"));
+        }
+
+        public final int getKeepLast() { return this.keepLast; }
+
+        /**
+         * @param snapshot an encoded checkpoint (see encode), which the caller must not touch afterwards
+         */
+        public synchronized Future<?> submit(final ByteBuffer snapshot, final Path path)
+        {
+            this.lastWrite = this.executor.submit(() -> {
+                try
+                {
+                    write(snapshot, path);
+                    this.retain(path);
+                } catch(IOException e)
+                {
+                    System.err.println("[ERROR] ModelCheckpoint.AsyncWriter: failed to write " + path);
+                    e.printStackTrace();
+                }
+            });
+            return this.lastWrite;
+        }
+
+        /**
+         * Copies src over dst (atomically) once every write submitted before this call has finished. Use it to
+         * promote a per-phase checkpoint to e.g. BEST.model: the copy is never touched by the retention policy.
+         */
+        public synchronized Future<?> submitCopy(final Path src, final Path dst)
+        {
+            this.lastWrite = this.executor.submit(() -> {
+                try
+                {
+                    Path tmp = dst.resolveSibling(dst.getFileName() + ".tmp");
+                    Files.copy(src, tmp, StandardCopyOption.REPLACE_EXISTING);
+                    Files.move(tmp, dst, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch(IOException e)
+                {
+                    System.err.println("[ERROR] ModelCheckpoint.AsyncWriter: failed to copy " + src + " to " + dst);
+                    e.printStackTrace();
+                }
+            });
+            return this.lastWrite;
+        }
+
+        /**
+         * Blocks until every write submitted so far is on disk.
+         */
+        public void flush() throws Exception
+        {
+            Future<?> lastWrite = null;
+            synchronized(this)
+            {
+                lastWrite = this.lastWrite;
+            }
+            if(lastWrite != null)
+            {
+                lastWrite.get();
+            }
+        }
+
+        private void retain(Path path) throws IOException
+        {
+            this.retained.remove(path);
+            this.retained.addLast(path);
+            while(this.getKeepLast() > 0 && this.retained.size() > this.getKeepLast())
+            {
+                Files.deleteIfExists(this.retained.removeFirst());
+            }
+        }
+
+        private void shutdown()
+        {
+            this.executor.shutdown();
+            try
+            {
+                this.executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * A Sequential whose save writes FORMAT (through the AsyncWriter, so text files get the same atomic writes and
+     * retention as binary ones) and whose load accepts both formats (sniffed from the first bytes), so the
+     * framework's save/load calls (TrainerAgent, QAgent.initialize) go through the checkpoint code unchanged.
+     */
+    public static class CheckpointedSequential
+        extends Sequential
+    {
+        // Sequential keeps its layer list private, InferenceQFunction.export needs to walk it
+        private final List<Module> modules;
+
+        public CheckpointedSequential()
+        {
+            super();
+            this.modules = new ArrayList<Module>();
+        }
+
+        public List<Module> getModules() { return Collections.unmodifiableList(this.modules); }
+
+        @Override
+        public void add(Module module)
+        {
+            super.add(module);
+            this.modules.add(module);
+        }
+
+        @Override
+        public void save(String filePath)
+        {
+            // the snapshot is taken here, so training can keep updating the parameters while it is written
+            ByteBuffer snapshot = "binary".equals(FORMAT) ? encode(this.getParameters())
+                                                          : encodeText(this.getParameters());
+            getAsyncWriter().submit(snapshot, Paths.get(filePath));
+        }
+
+        @Override
+        public void load(String filePath) throws Exception
+        {
+            if(ModelCheckpoint.isCheckpoint(filePath))
+            {
+                ModelCheckpoint.load(this, filePath);
+            } else
+            {
+                super.load(filePath);
+            }
+        }
+    }
+
+    public static int getHeaderSize(int numParams)
+    {
+        int size = 3 * Integer.BYTES + 2 * Integer.BYTES * numParams;
+        return (size + Double.BYTES - 1) / Double.BYTES * Double.BYTES;
+    }
+
+    public static boolean isCheckpoint(String filePath) throws IOException
+    {
+        try(FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ))
+        {
+            ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while(magic.hasRemaining() && channel.read(magic) >= 0) {}
+            return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+        }
+    }
+
+    public static ByteBuffer encode(List<Parameter> params)
+    {
+        int numDoubles = 0;
+        for(Parameter param : params)
+        {
+            numDoubles += param.getValue().numel();
+        }
+
+        int headerSize = getHeaderSize(params.size());
+        ByteBuffer buffer = ByteBuffer.allocate(headerSize + Double.BYTES * numDoubles).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(params.size());
+        for(Parameter param : params)
+        {
+            buffer.putInt(param.getValue().getShape().getNumRows());
+            buffer.putInt(param.getValue().getShape().getNumCols());
+        }
+
+        buffer.position(headerSize);
+        for(Parameter param : params)
+        {
+            Matrix value = param.getValue();
+            int numRows = value.getShape().getNumRows();
+            int numCols = value.getShape().getNumCols();
+            for(int row = 0; row < numRows; ++row)
+            {
+                for(int col = 0; col < numCols; ++col)
+                {
+                    buffer.putDouble(value.get(row, col));
+                }
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * The bytes Sequential.save writes: one "(rows,cols);v,v,..." line per parameter.
+     */
+    public static ByteBuffer encodeText(List<Parameter> params)
+    {
+        StringBuilder text = new StringBuilder();
+        for(Parameter param : params)
+        {
+            text.append(param.toStringData()).append("\n");
+        }
+        return ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static void save(Model model, String filePath) throws IOException
+    {
+        write(encode(model.getParameters()), Paths.get(filePath));
+    }
+
+    /**
+     * Writes buffer to a temporary file next to path, syncs it, then renames it over path.
+     */
+    public static void write(ByteBuffer buffer, Path path) throws IOException
+    {
+        File parent = path.toAbsolutePath().toFile().getParentFile();
+        if(parent != null)
+        {
+            parent.mkdirs();
+        }
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                   StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            while(buffer.hasRemaining())
+            {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public static void load(Model model, String filePath) throws Exception
+    {
+        List<Parameter> params = model.getParameters();
+        try(FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ))
+        {
+            MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapping.order(ByteOrder.LITTLE_ENDIAN);
+
+            if(mapping.remaining() < 3 * Integer.BYTES || mapping.getInt(0) != MAGIC)
+            {
+                throw new Exception("[ERROR] ModelCheckpoint.load: " + filePath + " is not a checkpoint");
+            }
+            if(mapping.getInt(Integer.BYTES) != VERSION)
+            {
+                throw new Exception("[ERROR] ModelCheckpoint.load: " + filePath + " has version "
+                    + mapping.getInt(Integer.BYTES) + " but only version " + VERSION + " is supported");
+            }
+            int numParams = mapping.getInt(2 * Integer.BYTES);
+            if(numParams != params.size())
+            {
+                throw new Exception("[ERROR] ModelCheckpoint.load: " + filePath + " has " + numParams
+                    + " parameters but the model has " + params.size());
+            }
+
+            int numDoubles = 0;
+            for(int paramIdx = 0; paramIdx < numParams; ++paramIdx)
+            {
+                int numRows = mapping.getInt((3 + 2 * paramIdx) * Integer.BYTES);
+                int numCols = mapping.getInt((4 + 2 * paramIdx) * Integer.BYTES);
+                Matrix value = params.get(paramIdx).getValue();
+                if(value.getShape().getNumRows() != numRows || value.getShape().getNumCols() != numCols)
+                {
+                    throw new Exception("[ERROR] ModelCheckpoint.load: parameter " + paramIdx + " of " + filePath
+                        + " has shape (" + numRows + "," + numCols + ") but the model expects " + value.getShape());
+                }
+                numDoubles += numRows * numCols;
+            }
+
+            int headerSize = getHeaderSize(numParams);
+            if(mapping.capacity() != headerSize + (long)Double.BYTES * numDoubles)
+            {
+                throw new Exception("[ERROR] ModelCheckpoint.load: " + filePath + " is truncated or has trailing "
+                    + "bytes");
+            }
+
+            DoubleBuffer data = mapping.position(headerSize).slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            for(Parameter param : params)
+            {
+                Matrix value = param.getValue();
+                int numRows = value.getShape().getNumRows();
+                int numCols = value.getShape().getNumCols();
+                for(int row = 0; row < numRows; ++row)
+                {
+                    for(int col = 0; col < numCols; ++col)
+                    {
+                        value.set(row, col, data.get());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a text model (as written by Sequential.save) into the TetrisQAgent architecture and writes it back out
+     * as a checkpoint.
+     */
+    public static void convert(String textFilePath, String checkpointFilePath) throws Exception
+    {
+        Model model = new TetrisQAgent("convert").initQFunction();
+        model.load(textFilePath);
+        save(model, checkpointFilePath);
+    }
+
+    public static void main(String[] args)
+    {
+        if(args.length != 2)
+        {
+            System.err.println("usage: java src.pas.tetris.ModelCheckpoint <in.model> <out.ckpt>");
+            System.exit(-1);
+        }
+
+        try
+        {
+            long start = System.nanoTime();
+            convert(args[0], args[1]);
+            System.out.println("[INFO] ModelCheckpoint.main: converted " + args[0] + " -> " + args[1] + " in "
+                + (System.nanoTime() - start) / 1000000 + "ms");
+        } catch(Exception e)
+        {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+}
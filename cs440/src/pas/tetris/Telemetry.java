@@ -0,0 +1,427 @@
+package src.pas.tetris;
+
+
+// SYSTEM IMPORTS
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// JAVA PROJECT IMPORTS
+import edu.bu.tetris.linalg.Matrix;
+import edu.bu.tetris.nn.LossFunction;
+
+
+/**
+ * Structured training metrics, appended to the CSV file named by -Dtetris.telemetry (off when unset).
+ *
+ * Every row is one of three kinds:
+ *
+ *     phase   written by TetrisQAgent at the start of every trainQFunction call, covering the wall clock since the
+ *             previous phase row: games and decisions (total and per second), feature_ns and forward_ns per
+ *             decision (building the candidates' inputs, cache lookups included, and running the q-function on
+ *             them), and explore_rate (the fraction of shouldExplore calls that said yes). A decision is one
+ *             argmax over a state's candidates: a move, or one of the Bellman targets TrainerAgent computes.
+ *     epoch   written by TetrisQAgent after every epoch of trainQFunction: forward_ns and backward_ns per minibatch
+ *             (backward includes the optimizer step), replay_size (rows trained on), and the mean loss and mean
+ *             absolute TD error over the epoch's minibatches
+ *     eval    written by ParallelTrainerAgent after every phase's eval games: eval_utility, the value
+ *             "[INFO] TrainerAgent.onGameEnd" logs as the avg trajectory utility
+ *
+ * Columns that don't apply to a row's kind are left empty. Games are counted by ParallelTrainerAgent (TetrisQAgent
+ * never sees a game end), so they stay 0 with the plain TrainerAgent.
+ *
+ * Recording never waits for the file: rows are copied into a fixed ring of preallocated slots and a daemon thread
+ * appends them. If the ring is full the row is dropped (and counted) instead. A shutdown hook drains the ring.
+ *
+ * From cs440/, plot a run with:
+ *
+ *     python3 src/pas/tetris/agents/learning_curve.py telemetry.csv
+ */
+public class Telemetry
+    extends Object
+{
+
+    // the CSV file to append to, -Dtetris.telemetry=path (unset = no telemetry, and no timing in the hot paths)
+    public static final String PATH = System.getProperty("tetris.telemetry");
+    public static final boolean ENABLED = PATH != null && !PATH.isEmpty();
+
+    // rows that can wait for the writer thread, pick with -Dtetris.telemetryRingSize
+    public static final int RING_SIZE = Integer.getInteger("tetris.telemetryRingSize", 1024);
+
+    public static enum Kind
+    {
+        PHASE,
+        EPOCH,
+        EVAL;
+    }
+
+    public static enum Column
+    {
+        PHASE,
+        EPOCH,
+        TIME_S,
+        GAMES,
+        GAMES_PER_S,
+        DECISIONS,
+        DECISIONS_PER_S,
+        FEATURE_NS,
+        FORWARD_NS,
+        BACKWARD_NS,
+        REPLAY_SIZE,
+        LOSS,
+        TD_ERROR,
+        EXPLORE_RATE,
+        EVAL_UTILITY;
+    }
+
+    public static final int NUM_COLUMNS = Column.values().length;
+
+    /**
+     * Per-epoch accumulator for trainQFunction, only ever touched by the training thread.
+     */
+    public static class EpochStats
+        extends Object
+    {
+        private long numBatches;
+        private long numRows;
+        private long forwardNanos;
+        private long backwardNanos;
+        private double lossSum;
+        private double tdErrorSum;
+
+        public EpochStats()
+        {
+            this.reset();
+        }
+
+        public final long getNumBatches() { return this.numBatches; }
+        public final long getNumRows() { return this.numRows; }
+
+        public void reset()
+        {
+            this.numBatches = 0;
+            this.numRows = 0;
+            this.forwardNanos = 0;
+            this.backwardNanos = 0;
+            this.lossSum = 0.0;
+            this.tdErrorSum = 0.0;
+        }
+
+        public void addForwardNanos(long nanos) { this.forwardNanos += nanos; }
+        public void addBackwardNanos(long nanos) { this.backwardNanos += nanos; }
+
+        /**
+         * @param YHat the q-function's predictions for the minibatch, from before the update
+         */
+        public void addBatch(Matrix YHat, Matrix Y, LossFunction lossFunction) throws Exception
+        {
+            int numRows = YHat.getShape().getNumRows();
+            int numCols = YHat.getShape().getNumCols();
+            double tdError = 0.0;
+            for(int rowIdx = 0; rowIdx < numRows; ++rowIdx)
+            {
+                for(int colIdx = 0; colIdx < numCols; ++colIdx)
+                {
+                    tdError += Math.abs(YHat.get(rowIdx, colIdx) - Y.get(rowIdx, colIdx));
+                }
+            }
+            this.tdErrorSum += tdError / numRows;
+            this.lossSum += lossFunction.forward(YHat, Y).item();
+            this.numBatches++;
+            this.numRows += numRows;
+        }
+    }
+
+    private static Telemetry instance = null;
+
+    /**
+     * @return the process wide telemetry, or null when -Dtetris.telemetry is not set
+     */
+    public static synchronized Telemetry get()
+    {
+        if(instance == null && ENABLED)
+        {
+            instance = new Telemetry(Paths.get(PATH), RING_SIZE);
+        }
+        return instance;
+    }
+
+    private final Path path;
+    private final long startNanos;
+
+    // hot path counters, bumped from the game thread and the self-play workers
+    private final LongAdder numGames;
+    private final LongAdder numDecisions;
+    private final LongAdder featureNanos;
+    private final LongAdder forwardNanos;
+    private final LongAdder numExploreCalls;
+    private final LongAdder numExplorations;
+    private long lastPhaseNanos;     // only touched by recordPhase
+
+    // the ring: slots [consumed, published) hold rows the writer thread has not appended yet
+    private final int[] kinds;
+    private final double[][] rows;
+    private long head;                      // guarded by this
+    private volatile long published;
+    private volatile long consumed;
+    private final AtomicLong numDropped;
+    private final Thread writerThread;
+    private volatile boolean running;
+
+    public Telemetry(Path path, int ringSize)
+    {
+        this.path = path;
+        this.startNanos = System.nanoTime();
+        this.numGames = new LongAdder();
+        this.numDecisions = new LongAdder();
+        this.featureNanos = new LongAdder();
+        this.forwardNanos = new LongAdder();
+        this.numExploreCalls = new LongAdder();
+        this.numExplorations = new LongAdder();
+        this.lastPhaseNanos = this.startNanos;
+
+        this.kinds = new int[ringSize];
+        this.rows = new double[ringSize][NUM_COLUMNS];
+        this.head = 0;
+        this.published = 0;
+        this.consumed = 0;
+        this.numDropped = new AtomicLong(0);
+
+        this.running = true;
+        this.writerThread = new Thread(this::drainLoop, "tetris-telemetry");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "tetris-telemetry-drain"));
+    }
+
+    public final Path getPath() { return this.path; }
+    public long getNumDropped() { return this.numDropped.get(); }
+
+    public void addGames(long numGames) { this.numGames.add(numGames); }
+
+    public void addDecision(long featureNanos, long forwardNanos)
+    {
+        this.numDecisions.increment();
+        this.featureNanos.add(featureNanos);
+        this.forwardNanos.add(forwardNanos);
+    }
+
+    public void addExploreCall(boolean explored)
+    {
+        this.numExploreCalls.increment();
+        if(explored)
+        {
+            this.numExplorations.increment();
+        }
+    }
+
+    /**
+     * Writes a phase row for everything counted since the previous one, and starts counting again.
+     */
+    public void recordPhase(long phaseIdx)
+    {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9, (now - this.lastPhaseNanos) / 1e9);
+        this.lastPhaseNanos = now;
+
+        long numGames = this.numGames.sumThenReset();
+        long numDecisions = this.numDecisions.sumThenReset();
+        long featureNanos = this.featureNanos.sumThenReset();
+        long forwardNanos = this.forwardNanos.sumThenReset();
+        long numExploreCalls = this.numExploreCalls.sumThenReset();
+        long numExplorations = this.numExplorations.sumThenReset();
+
+        double[] row = newRow(phaseIdx, now);
+        row[Column.GAMES.ordinal()] = numGames;
+        row[Column.GAMES_PER_S.ordinal()] = numGames / seconds;
+        row[Column.DECISIONS.ordinal()] = numDecisions;
+        row[Column.DECISIONS_PER_S.ordinal()] = numDecisions / seconds;
+        row[Column.FEATURE_NS.ordinal()] = numDecisions > 0 ? (double)featureNanos / numDecisions : Double.NaN;
+        row[Column.FORWARD_NS.ordinal()] = numDecisions > 0 ? (double)forwardNanos / numDecisions : Double.NaN;
+        row[Column.EXPLORE_RATE.ordinal()] = numExploreCalls > 0
+            ? (double)numExplorations / numExploreCalls : Double.NaN;
+        this.offer(Kind.PHASE, row);
+    }
+
+    public void recordEpoch(long phaseIdx, long epochIdx, long replaySize, EpochStats stats)
+    {
+        long numBatches = Math.max(1, stats.getNumBatches());
+        double[] row = newRow(phaseIdx, System.nanoTime());
+        row[Column.EPOCH.ordinal()] = epochIdx;
+        row[Column.FORWARD_NS.ordinal()] = (double)stats.forwardNanos / numBatches;
+        row[Column.BACKWARD_NS.ordinal()] = (double)stats.backwardNanos / numBatches;
+        row[Column.REPLAY_SIZE.ordinal()] = replaySize;
+        row[Column.LOSS.ordinal()] = stats.lossSum / numBatches;
+        row[Column.TD_ERROR.ordinal()] = stats.tdErrorSum / numBatches;
+        this.offer(Kind.EPOCH, row);
+    }
+
+    public void recordEval(long phaseIdx, double evalUtility)
+    {
+        double[] row = newRow(phaseIdx, System.nanoTime());
+        row[Column.EVAL_UTILITY.ordinal()] = evalUtility;
+        this.offer(Kind.EVAL, row);
+    }
+
+    private double[] newRow(long phaseIdx, long now)
+    {
+        // a scratch row: offer copies it into the ring, recording is far too rare for this to matter
+        double[] row = new double[NUM_COLUMNS];
+        Arrays.fill(row, Double.NaN);
+        row[Column.PHASE.ordinal()] = phaseIdx;
+        row[Column.TIME_S.ordinal()] = (now - this.startNanos) / 1e9;
+        return row;
+    }
+
+    /**
+     * Copies row into the next free slot, or drops it if the writer thread is a whole ring behind.
+     */
+    private boolean offer(Kind kind, double[] row)
+    {
+        synchronized(this)
+        {
+            if(this.head - this.consumed >= this.rows.length)
+            {
+                this.numDropped.incrementAndGet();
+                return false;
+            }
+            int slot = (int)(this.head % this.rows.length);
+            this.kinds[slot] = kind.ordinal();
+            System.arraycopy(row, 0, this.rows[slot], 0, NUM_COLUMNS);
+            this.published = ++this.head;
+        }
+        LockSupport.unpark(this.writerThread);
+        return true;
+    }
+
+    private void drainLoop()
+    {
+        BufferedWriter writer = null;
+        try
+        {
+            boolean isNew = !Files.exists(this.path) || Files.size(this.path) == 0;
+            Path parent = this.path.toAbsolutePath().getParent();
+            if(parent != null)
+            {
+                Files.createDirectories(parent);
+            }
+            writer = Files.newBufferedWriter(this.path, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            if(isNew)
+            {
+                writer.write(header());
+                writer.newLine();
+                writer.flush();
+            }
+        } catch(IOException e)
+        {
+            System.err.println("[ERROR] Telemetry: could not open " + this.path + ", no telemetry will be written");
+            e.printStackTrace();
+        }
+
+        StringBuilder line = new StringBuilder();
+        while(true)
+        {
+            boolean wasRunning = this.running;
+            long published = this.published;
+            long consumed = this.consumed;
+            try
+            {
+                for(; consumed < published; ++consumed)
+                {
+                    int slot = (int)(consumed % this.rows.length);
+                    if(writer != null)
+                    {
+                        line.setLength(0);
+                        format(line, Kind.values()[this.kinds[slot]], this.rows[slot]);
+                        writer.write(line.toString());
+                        writer.newLine();
+                    }
+                    this.consumed = consumed + 1;
+                }
+                if(writer != null)
+                {
+                    writer.flush();
+                }
+            } catch(IOException e)
+            {
+                System.err.println("[ERROR] Telemetry: failed to append to " + this.path);
+                e.printStackTrace();
+                writer = null;
+            }
+
+            if(!wasRunning && this.consumed == this.published)
+            {
+                break;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+        }
+
+        if(writer != null)
+        {
+            try
+            {
+                writer.close();
+            } catch(IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public static String header()
+    {
+        StringBuilder header = new StringBuilder("kind");
+        for(Column column : Column.values())
+        {
+            header.append(',').append(column.name().toLowerCase());
+        }
+        return header.toString();
+    }
+
+    public static void format(StringBuilder line, Kind kind, double[] row)
+    {
+        line.append(kind.name().toLowerCase());
+        for(int colIdx = 0; colIdx < NUM_COLUMNS; ++colIdx)
+        {
+            line.append(',');
+            double value = row[colIdx];
+            if(Double.isNaN(value))
+            {
+                continue;
+            }
+            if(value == Math.rint(value) && Math.abs(value) < 1e15)
+            {
+                line.append((long)value);
+            } else
+            {
+                line.append(value);
+            }
+        }
+    }
+
+    private void shutdown()
+    {
+        this.running = false;
+        LockSupport.unpark(this.writerThread);
+        try
+        {
+            this.writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        if(this.getNumDropped() > 0)
+        {
+            System.err.println("[ERROR] Telemetry: dropped " + this.getNumDropped() + " row(s), the writer fell "
+                + RING_SIZE + " rows behind");
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package src.pas.tetris.agents;
+
+
+// SYSTEM IMPORTS
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.sourceforge.argparse4j.inf.Namespace;
+
+// JAVA PROJECT IMPORTS
+import edu.bu.tetris.agents.Agent;
+import edu.bu.tetris.agents.QAgent;
+import edu.bu.tetris.agents.TrainerAgent;
+import edu.bu.tetris.game.Game;
+import edu.bu.tetris.game.Game.GameView;
+import edu.bu.tetris.game.minos.Mino;
+import edu.bu.tetris.linalg.Matrix;
+import edu.bu.tetris.nn.Parameter;
+import src.pas.tetris.ModelCheckpoint;
+import src.pas.tetris.Telemetry;
+
+
+/**
+ * A TrainerAgent that plays extra training games in the background while the game loop plays its own.
+ *
+ * When a training game starts, NUM_SELF_PLAY_GAMES more games are started on worker threads, each played by its own
+ * copy of the q-agent (own exploration RNG) holding a snapshot of the current q-function. The q-function only changes
+ * in onGameEnd, so the snapshot is exactly the policy the foreground game is playing. Every worker records its
+ * transitions into its own stripe, so nothing is shared while the games run; when the foreground game ends the
+ * stripes are appended to the replay buffer in worker order before TrainerAgent decides whether to train.
+ *
+ * Every game seed and exploration RNG (the foreground TetrisQAgent's too) is drawn from the trainer's Random, so two
+ * runs with the same --seed that start from the same -i checkpoint train the same models. Without -i the framework
+ * draws fresh initial weights, and -Dtetris.exploration=novelty shares its visit counts between the threads, so
+ * neither of those repeats.
+ *
+ * Every training game therefore yields (1 + NUM_SELF_PLAY_GAMES) games of experience for roughly the wall clock of
+ * one, so -t can be divided by that factor. Use it with -a src.pas.tetris.agents.ParallelTrainerAgent.
+ *
+ * It also keeps the best checkpoint by eval score: after each phase's eval games, if the average trajectory utility
+ * beats every earlier phase, that phase's checkpoint is copied to (outFile + "BEST.model") on the checkpoint
+ * writer's thread, so the -Dtetris.keepLastCheckpoints retention never deletes the best model.
+ *
+ * When the q-agent is a TetrisQAgent its replay buffer is replaced by a TetrisQAgent.PackedReplayBuffer, which keeps
+ * the samples bit-packed and lets the q-agent decode its minibatches straight from them instead of from a Dataset
+ * copy of the whole buffer.
+ *
+ * With -Dtetris.telemetry it also counts every game it plays (self-play ones included) and writes each phase's eval
+ * utility as an eval row, next to the q-agent's phase and epoch rows.
+ */
+public class ParallelTrainerAgent
+    extends TrainerAgent
+{
+
+    // same length Main uses for every game
+    public static final int NUM_MINOS_PER_GAME = 100;
+
+    // background games per training game, pick with -Dtetris.numSelfPlayGames (0 = plain TrainerAgent)
+    public static final int NUM_SELF_PLAY_GAMES =
+        Integer.getInteger("tetris.numSelfPlayGames", Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+
+    /**
+     * One (state+action, reward, next state) sample, in the same form ReplayBuffer.addSample takes it.
+     */
+    public static class Transition
+        extends Object
+    {
+        private final Matrix pastStateAndAction;
+        private final double reward;
+        private final GameView nextState;
+
+        public Transition(Matrix pastStateAndAction, double reward, GameView nextState)
+        {
+            this.pastStateAndAction = pastStateAndAction;
+            this.reward = reward;
+            this.nextState = nextState;
+        }
+
+        public final Matrix getPastStateAndAction() { return this.pastStateAndAction; }
+        public final double getReward() { return this.reward; }
+        public final GameView getNextState() { return this.nextState; }
+    }
+
+    /**
+     * Plays one background training game the same way TrainerAgent.makeMove plays a training game, but records
+     * into its own stripe instead of the shared replay buffer.
+     */
+    public static class SelfPlayWorker
+        extends Agent
+    {
+        private final QAgent qAgent;
+        private final GameCounter gameCounter;
+        private final List<Transition> stripe;
+        private Matrix pastStateAndAction;
+
+        public SelfPlayWorker(String name, QAgent qAgent, GameCounter gameCounter)
+        {
+            super(name);
+            this.qAgent = qAgent;
+            this.gameCounter = gameCounter;
+            this.stripe = new ArrayList<Transition>();
+            this.pastStateAndAction = null;
+        }
+
+        public final QAgent getQAgent() { return this.qAgent; }
+        public final GameCounter getGameCounter() { return this.gameCounter; }
+        public final List<Transition> getStripe() { return this.stripe; }
+
+        @Override
+        public void initialize(Namespace ns) {}
+
+        @Override
+        public Mino makeMove(final GameView game)
+        {
+            Mino action = null;
+            if(this.getQAgent().shouldExplore(game, new GameCounter(this.getGameCounter())))
+            {
+                action = this.getQAgent().getExplorationMove(game);
+            } else
+            {
+                action = this.getQAgent().getBestActionAndQValue(game).getFirst();
+            }
+
+            Matrix stateAndAction = this.getQAgent().getQFunctionInput(game, action);
+            if(this.pastStateAndAction != null)
+            {
+                this.getStripe().add(new Transition(this.pastStateAndAction, this.getQAgent().getReward(game), game));
+            }
+            this.pastStateAndAction = stateAndAction;
+            return action;
+        }
+
+        @Override
+        public void onGameEnd(final GameView game) {}
+
+        public List<Transition> play(long seed)
+        {
+            Game game = new Game(seed, NUM_MINOS_PER_GAME, this);
+            while(!game.isOver())
+            {
+                game.update();
+            }
+            return this.getStripe();
+        }
+    }
+
+    private ExecutorService pool;
+    private List<Future<List<Transition>>> selfPlayGames;
+    private long numSelfPlayTransitions;
+    private double bestEvalUtility;
+
+    public ParallelTrainerAgent(String name)
+    {
+        super(name);
+        this.pool = null;
+        this.selfPlayGames = null;
+        this.numSelfPlayTransitions = 0;
+        this.bestEvalUtility = Double.NEGATIVE_INFINITY;
+    }
+
+    public long getNumSelfPlayTransitions() { return this.numSelfPlayTransitions; }
+    public double getBestEvalUtility() { return this.bestEvalUtility; }
+    public String getBestFilePath() { return this.getFileManager().getParamsFilePathTemplate() + "BEST.model"; }
+
+    @Override
+    public void initialize(Namespace ns)
+    {
+        super.initialize(ns);
+        if(this.getQAgent() instanceof TetrisQAgent
+           && !(this.getReplayBuffer() instanceof TetrisQAgent.PackedReplayBuffer))
+        {
+            TetrisQAgent.PackedReplayBuffer buffer = new TetrisQAgent.PackedReplayBuffer(
+                this.getReplayBuffer().getReplacementType(), (Integer)ns.get("maxBufferSize"), this.getRandom());
+            this.setReplayBuffer(buffer);
+            ((TetrisQAgent)this.getQAgent()).setReplayBuffer(buffer);
+        }
+        if(this.getQAgent() instanceof TetrisQAgent)
+        {
+            // the foreground game's exploration, seeded like the self-play snapshots' (see startSelfPlayGames)
+            ((TetrisQAgent)this.getQAgent()).setRandom(new Random(this.getRandom().nextLong()));
+        }
+        if(this.pool == null && NUM_SELF_PLAY_GAMES > 0)
+        {
+            this.pool = Executors.newFixedThreadPool(NUM_SELF_PLAY_GAMES, r -> {
+                Thread t = new Thread(r, "tetris-self-play");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    @Override
+    public Mino makeMove(final GameView game)
+    {
+        if(this.pool != null && this.selfPlayGames == null && this.getGameCounter().isTrainingGame())
+        {
+            this.startSelfPlayGames();
+        }
+        return super.makeMove(game);
+    }
+
+    @Override
+    public void onGameEnd(final GameView game)
+    {
+        // has to happen before super.onGameEnd, which trains on the replay buffer after the last training game
+        if(this.selfPlayGames != null)
+        {
+            this.joinSelfPlayGames();
+        }
+
+        Telemetry telemetry = Telemetry.get();
+        if(telemetry != null)
+        {
+            telemetry.addGames(1);
+        }
+
+        // super.onGameEnd folds this game into the average and then resets it, so compute the phase's score first
+        GameCounter gameCounter = this.getGameCounter();
+        if(gameCounter.isEvalGame() && gameCounter.getCurrentGameIdx() == gameCounter.getCycleLength() - 1)
+        {
+            double evalUtility = (this.getModelEvaluator().getObservedAvgTrajectoryReward()
+                + this.getModelEvaluator().getCurrentObservedTrajectoryReward()) / gameCounter.getNumEvalGames();
+            if(telemetry != null)
+            {
+                // the same 1-based phase number TrainerAgent logs the utility under
+                telemetry.recordEval(gameCounter.getCurrentPhaseIdx() + 1, evalUtility);
+            }
+            if(evalUtility > this.getBestEvalUtility())
+            {
+                this.bestEvalUtility = evalUtility;
+                String phaseFilePath = this.getFileManager().getFilePath(gameCounter.getCurrentPhaseIdx());
+                ModelCheckpoint.getAsyncWriter().submitCopy(Paths.get(phaseFilePath), Paths.get(this.getBestFilePath()));
+                System.out.println("[INFO] ParallelTrainerAgent.onGameEnd: new best eval utility " + evalUtility
+                    + ", keeping " + phaseFilePath + " as " + this.getBestFilePath());
+            }
+        }
+        super.onGameEnd(game);
+    }
+
+    private void startSelfPlayGames()
+    {
+        this.selfPlayGames = new ArrayList<Future<List<Transition>>>(NUM_SELF_PLAY_GAMES);
+        for(int workerIdx = 0; workerIdx < NUM_SELF_PLAY_GAMES; ++workerIdx)
+        {
+            // drawn here (one thread, fixed order) so a fixed --seed gives the same games and moves every run
+            final long seed = this.getRandom().nextLong();
+            final long explorationSeed = this.getRandom().nextLong();
+            final SelfPlayWorker worker = new SelfPlayWorker("self-play-" + workerIdx,
+                                                             this.makeSnapshot(explorationSeed),
+                                                             new GameCounter(this.getGameCounter()));
+            this.selfPlayGames.add(this.pool.submit(() -> worker.play(seed)));
+        }
+    }
+
+    private void joinSelfPlayGames()
+    {
+        long numTransitions = this.numSelfPlayTransitions;
+        try
+        {
+            for(Future<List<Transition>> selfPlayGame : this.selfPlayGames)
+            {
+                for(Transition transition : selfPlayGame.get())
+                {
+                    this.getReplayBuffer().addSample(transition.getPastStateAndAction(), transition.getReward(),
+                                                     transition.getNextState());
+                    this.numSelfPlayTransitions++;
+                }
+            }
+        } catch(InterruptedException | ExecutionException e)
+        {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        System.out.println("[INFO] ParallelTrainerAgent.onGameEnd: added "
+            + (this.numSelfPlayTransitions - numTransitions) + " transitions from " + this.selfPlayGames.size()
+            + " self-play game(s)");
+        if(Telemetry.get() != null)
+        {
+            Telemetry.get().addGames(this.selfPlayGames.size());
+        }
+        this.selfPlayGames = null;
+    }
+
+    /**
+     * A fresh instance of the q-agent's class with a copy of the current q-function's parameters. A TetrisQAgent
+     * snapshot also explores with new Random(explorationSeed).
+     */
+    private QAgent makeSnapshot(long explorationSeed)
+    {
+        try
+        {
+            QAgent snapshot = this.getQAgent().getClass().getConstructor(String.class).newInstance("self-play");
+
+            Map<String, Object> args = new HashMap<String, Object>();
+            args.put("inFile", "");     // initQFunction only, the parameters are copied below
+            snapshot.initialize(new Namespace(args));
+
+            List<Parameter> src = this.getQAgent().getQFunction().getParameters();
+            List<Parameter> dst = snapshot.getQFunction().getParameters();
+            for(int paramIdx = 0; paramIdx < src.size(); ++paramIdx)
+            {
+                Matrix value = src.get(paramIdx).getValue();
+                dst.get(paramIdx).getValue().copySlice(0, value.getShape().getNumRows(),
+                                                       0, value.getShape().getNumCols(), value);
+            }
+            if(snapshot instanceof TetrisQAgent)
+            {
+                ((TetrisQAgent)snapshot).invalidateQValueCache();
+                ((TetrisQAgent)snapshot).setRandom(new Random(explorationSeed));
+                if(this.getQAgent() instanceof TetrisQAgent)
+                {
+                    // one schedule (and one novelty count table) for all of the phase's games
+                    ((TetrisQAgent)snapshot).setExplorationScheduler(
+                        ((TetrisQAgent)this.getQAgent()).getExplorationScheduler());
+                }
+            }
+            return snapshot;
+        } catch(Exception e)
+        {
+            System.err.println("[ERROR] ParallelTrainerAgent.makeSnapshot: could not copy q-agent "
+                + this.getQAgent().getClass().getName());
+            e.printStackTrace();
+            System.exit(-1);
+            return null;
+        }
+    }
+}
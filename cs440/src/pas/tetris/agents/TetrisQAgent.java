@@ -1,13 +1,28 @@
 package src.pas.tetris.agents;
 
 
+import java.awt.Color;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 // SYSTEM IMPORTS
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 // JAVA PROJECT IMPORTS
@@ -15,20 +30,28 @@ import edu.bu.tetris.agents.QAgent;
 import edu.bu.tetris.agents.TrainerAgent.GameCounter;
 import edu.bu.tetris.game.Block;
 import edu.bu.tetris.game.Board;
+import edu.bu.tetris.game.Game;
 import edu.bu.tetris.game.Game.GameView;
 import edu.bu.tetris.game.minos.Mino;
 import edu.bu.tetris.game.minos.Mino.MinoType;
 import edu.bu.tetris.linalg.Matrix;
 import edu.bu.tetris.nn.Model;
 import edu.bu.tetris.nn.LossFunction;
+import edu.bu.tetris.nn.Module;
 import edu.bu.tetris.nn.Optimizer;
+import edu.bu.tetris.nn.Parameter;
 import edu.bu.tetris.nn.models.Sequential;
 import edu.bu.tetris.nn.layers.Dense; // fully connected layer
 import edu.bu.tetris.nn.layers.ReLU;  // some activations (below too)
 import edu.bu.tetris.nn.layers.Tanh;
 import edu.bu.tetris.nn.layers.Sigmoid;
 import edu.bu.tetris.training.data.Dataset;
+import edu.bu.tetris.training.data.ReplayBuffer;
+import edu.bu.tetris.utils.Coordinate;
 import edu.bu.tetris.utils.Pair;
+import src.pas.tetris.InferenceQFunction;
+import src.pas.tetris.ModelCheckpoint;
+import src.pas.tetris.Telemetry;
 
 
 public class TetrisQAgent
@@ -37,15 +60,142 @@ public class TetrisQAgent
 
     public static final double EXPLORATION_PROB = 0.05;
 
+    /**
+     * DENSE: the original Dense(231, 115) -> Dense(115, 57) -> Dense(57, 1) stack over the flattened image.
+     * CONV: a BoardConvEncoder over the 22 x 10 image (the engineered features pass straight through) and a small
+     * dense head, about a sixth of the parameters and of the multiply-adds per row.
+     */
+    public static enum QFunctionType {
+        DENSE,
+        CONV;
+    }
+
+    // the architecture new agents build, pick with -Dtetris.qFunction=dense|conv (checkpoints only load into the same one)
+    public static final QFunctionType Q_FUNCTION_TYPE =
+        QFunctionType.valueOf(System.getProperty("tetris.qFunction", "dense").toUpperCase());
+    public static final int CONV_NUM_KERNELS = 4;
+    public static final int CONV_HIDDEN_DIM = 32;
+
+    // worker threads for trainQFunction, pick with -Dtetris.numTrainThreads (1 = the old single threaded loop)
+    public static final int NUM_TRAIN_THREADS = Integer.getInteger("tetris.numTrainThreads", 1);
+    // row shards per minibatch when NUM_TRAIN_THREADS > 1, pick with -Dtetris.numTrainShards. The weights only
+    // depend on this, not on the thread count, so the same seed trains the same model on any machine
+    public static final int NUM_TRAIN_SHARDS = Integer.getInteger("tetris.numTrainShards", 4);
+
+    // -Dtetris.replay=prioritized draws minibatches by TD error from the packed buffer (uniform = shuffled epochs)
+    public static final boolean USE_PRIORITIZED_REPLAY =
+        "prioritized".equals(System.getProperty("tetris.replay", "uniform"));
+
+    // Q-values remembered between parameter updates, pick with -Dtetris.qValueCacheSize (0 = no cache)
+    public static final int Q_VALUE_CACHE_SIZE = Integer.getInteger("tetris.qValueCacheSize", 1 << 16);
+
+    // -Dtetris.lookaheadMs=N makes makeMove search the preview for up to N ms per move (0 = greedy makeMove)
+    public static final long LOOKAHEAD_BUDGET_MS = Long.getLong("tetris.lookaheadMs", 0);
+    // placements kept per position at every level of the search
+    public static final int LOOKAHEAD_BEAM_WIDTH = Integer.getInteger("tetris.lookaheadBeamWidth", 8);
+    // discount the search backs lines up with, pick with -Dtetris.lookaheadGamma. Not -g: the trainer's default
+    // 1e-4 leaves only the first placement's reward in the backed-up value
+    public static final double LOOKAHEAD_GAMMA =
+        Double.parseDouble(System.getProperty("tetris.lookaheadGamma", "0.1"));
+
+    // -Dtetris.inference=float makes the greedy makeMove pick through a float InferenceQFunction export (double = off),
+    // which picks the same moves
+    public static final InferenceQFunction.Precision INFERENCE_PRECISION =
+        "double".equals(System.getProperty("tetris.inference", "double")) ? null
+            : InferenceQFunction.Precision.valueOf(System.getProperty("tetris.inference").toUpperCase());
+
+    // how training moves explore, pick with -Dtetris.exploration=epsilon|boltzmann|novelty
+    public static final String EXPLORATION = System.getProperty("tetris.exploration", "epsilon");
+    // epsilon and the Boltzmann temperature go linearly from start to end over the first EXPLORATION_DECAY_PHASES
+    // phases, the epsilon defaults keep the old constant EXPLORATION_PROB coin flip
+    public static final double EPSILON_START =
+        Double.parseDouble(System.getProperty("tetris.epsilonStart", String.valueOf(EXPLORATION_PROB)));
+    public static final double EPSILON_END =
+        Double.parseDouble(System.getProperty("tetris.epsilonEnd", String.valueOf(EXPLORATION_PROB)));
+    public static final double BOLTZMANN_TEMPERATURE_START =
+        Double.parseDouble(System.getProperty("tetris.temperatureStart", "1.0"));
+    public static final double BOLTZMANN_TEMPERATURE_END =
+        Double.parseDouble(System.getProperty("tetris.temperatureEnd", "0.05"));
+    public static final int EXPLORATION_DECAY_PHASES = Integer.getInteger("tetris.explorationDecayPhases", 10);
+    // weight of the count-based bonus, in units of the candidates' Q-value spread
+    public static final double NOVELTY_BONUS = Double.parseDouble(System.getProperty("tetris.noveltyBonus", "0.5"));
+
+    // the weights of getReward, pick with -Dtetris.reward=shaped|bestsub and override with -Dtetris.reward.<term>
+    public static final RewardWeights REWARD_WEIGHTS = RewardWeights.fromProperties();
+    // the rewards the search collects along a line, pick with -Dtetris.lookaheadReward=shaped|bestsub
+    public static final RewardWeights LOOKAHEAD_REWARD_WEIGHTS =
+        RewardWeights.byName(System.getProperty("tetris.lookaheadReward", "bestsub"));
+
+    // Mino.hashCode goes through its Orientation's identity hash, so the order getFinalMinoPositions() comes out of
+    // its HashSet in changes from run to run. Candidates are put in this order instead, which is total because a
+    // view's candidates all have the same type
+    public static final Comparator<Mino> CANDIDATE_ORDER =
+        Comparator.comparingInt((Mino mino) -> mino.getOrientation().ordinal())
+            .thenComparingInt(mino -> mino.getPivotBlockCoordinate().getXCoordinate())
+            .thenComparingInt(mino -> mino.getPivotBlockCoordinate().getYCoordinate());
+
     private Random random;
+    private volatile BoardProfile boardProfile;
+    private DataParallelTrainer trainer;
+    private PackedReplayBuffer replayBuffer;
+    private final QValueCache qValueCache;
+    private LookaheadSearch lookaheadSearch;
+    private final QFunctionType qFunctionType;
+    private InferenceQFunction inferenceQFunction;
+    private Matrix inferenceInputs;
+    private boolean canExportQFunction;
+    private final Telemetry telemetry;
+    private long numTrainQFunctionCalls;
+    private ExplorationScheduler explorationScheduler;
+    private GameCounter explorationGameCounter;
+    private GameView candidatesView;
+    private List<Mino> candidates;
+    private Matrix candidateQValues;
 
     public TetrisQAgent(String name)
+    {
+        this(name, Q_FUNCTION_TYPE);
+    }
+
+    public TetrisQAgent(String name, QFunctionType qFunctionType)
     {
         super(name);
+        this.qFunctionType = qFunctionType;
         this.random = new Random(); // optional to have a seed
+        this.boardProfile = null;
+        this.trainer = null;
+        this.replayBuffer = null;
+        this.qValueCache = Q_VALUE_CACHE_SIZE > 0 ? new QValueCache(Q_VALUE_CACHE_SIZE) : null;
+        this.lookaheadSearch = null;
+        this.inferenceQFunction = null;
+        this.inferenceInputs = null;
+        this.canExportQFunction = true;
+        this.telemetry = Telemetry.get();
+        this.numTrainQFunctionCalls = 0;
+        this.explorationScheduler = newExplorationScheduler(EXPLORATION);
+        this.explorationGameCounter = null;
+        this.candidatesView = null;
+        this.candidates = null;
+        this.candidateQValues = null;
     }
 
     public Random getRandom() { return this.random; }
+    public final QValueCache getQValueCache() { return this.qValueCache; }
+    public final QFunctionType getQFunctionType() { return this.qFunctionType; }
+    public final Telemetry getTelemetry() { return this.telemetry; }
+    public ExplorationScheduler getExplorationScheduler() { return this.explorationScheduler; }
+    public PackedReplayBuffer getReplayBuffer() { return this.replayBuffer; }
+    /**
+     * Makes trainQFunction train from buffer's packed rows instead of the Dataset it is passed. The trainer calling
+     * trainQFunction must be the one holding buffer (see PackedReplayBuffer.getTrainingData).
+     */
+    public void setReplayBuffer(PackedReplayBuffer buffer) { this.replayBuffer = buffer; }
+    public void setExplorationScheduler(ExplorationScheduler explorationScheduler)
+    {
+        this.explorationScheduler = explorationScheduler;
+    }
+    // the exploration draws (see ExplorationScheduler), seeded by ParallelTrainerAgent from its own Random
+    public void setRandom(Random random) { this.random = random; }
 
     @Override
     public Model initQFunction() {
@@ -56,7 +206,17 @@ public class TetrisQAgent
         final int secondHiddenDim = firstHiddenDim / 2; 
         final int outputDim = 1;  
 
-        Sequential qFunction = new Sequential();
+        // saves text (or with -Dtetris.checkpointFormat=binary, binary) checkpoints, loads either
+        Sequential qFunction = new ModelCheckpoint.CheckpointedSequential();
+        if (this.getQFunctionType() == QFunctionType.CONV) {
+            BoardConvEncoder encoder = new BoardConvEncoder(CONV_NUM_KERNELS, numAdditionalFeatures, this.getRandom());
+            qFunction.add(encoder);
+            qFunction.add(new Dense(encoder.getOutputDim(), CONV_HIDDEN_DIM));
+            qFunction.add(new ReLU());
+            qFunction.add(new Dense(CONV_HIDDEN_DIM, outputDim));
+            return qFunction;
+        }
+
         qFunction.add(new Dense(numFeatures, firstHiddenDim));
         qFunction.add(new ReLU());
         qFunction.add(new Dense(firstHiddenDim, secondHiddenDim));
@@ -85,41 +245,11 @@ public class TetrisQAgent
     @Override
     public Matrix getQFunctionInput(final GameView game, final Mino potentialAction) {
         try { 
-            // Flatten grayscale image to single row vector
-            Matrix grayscaleImage = game.getGrayscaleImage(potentialAction).flatten();
             int numPixels = Board.NUM_COLS * Board.NUM_ROWS;
-
-            // Additional features
             int numAdditionalFeatures = 11;
             Matrix inputVector = Matrix.zeros(1, numPixels + numAdditionalFeatures);
 
-            // Set grayscale pixels
-            for (int i = 0; i < numPixels; i++) {
-                inputVector.set(0, i, grayscaleImage.get(0, i));
-            }
-
-            // Extract and set additional features
-            int[] features = {
-                game.getScoreThisTurn(),
-                getNextMino(game),
-                game.getTotalScore(),
-                getNumberOfHoles(game.getBoard()),
-                getBumpiness(game.getBoard()),
-                getMaxHeight(game.getBoard()),
-                getMinHeight(game.getBoard()),
-                getTotalHeight(game.getBoard()),
-                // getTransitions(game.getBoard()),
-                // calculateWellSums(game.getBoard()),
-                // countBlockades(game.getBoard())
-                0,
-                0,
-                0 // placeholders
-            };
-
-            for (int i = 0; i < numAdditionalFeatures; i++) {
-                inputVector.set(0, numPixels + i, features[i]);
-            }
-
+            this.setQFunctionInput(inputVector, 0, game, potentialAction);
             return inputVector;
             
         } catch (Exception e) {
@@ -128,238 +258,2374 @@ public class TetrisQAgent
         }
     }
 
-    // helper functions for features
-    private int getNextMino(GameView game) { 
-        Mino.MinoType nextMino = null;
-        List<Mino.MinoType> nextMinos = game.getNextThreeMinoTypes(); 
+    /**
+     * Picks the argmax over getFinalMinoPositions() like QAgent does, but stacks every candidate's features into
+     * one (numCandidates, numFeatures) matrix and runs a single forward pass instead of one per candidate.
+     * Ties still go to the first candidate in the list.
+     */
+    @Override
+    public Pair<Mino, Double> getBestActionAndQValue(final GameView game) {
+        List<Mino> positions = this.getCandidates(game);
+        Mino bestMino = null;
+        double bestQValue = Double.NEGATIVE_INFINITY;
 
-        if (!nextMinos.isEmpty()) {
-            nextMino = nextMinos.get(0);
+        try {
+            Matrix qValues = this.getCandidateQValues(game);
+            for (int i = 0; i < positions.size(); i++) {
+                double qValue = qValues.get(i, 0);
+                if (qValue > bestQValue || bestMino == null) {
+                    bestQValue = qValue;
+                    bestMino = positions.get(i);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(-1);
         }
-        return nextMino.ordinal();
+
+        if (bestMino == null) {
+            System.err.println("[ERROR] TetrisQAgent.getBestActionAndQValue: agent did not pick a move! "
+                + positions.size());
+            System.exit(-1);
+        }
+        return new Pair<Mino, Double>(bestMino, bestQValue);
     }
 
-    private int getNumberOfHoles(Board board) {
-        int numberOfHoles = 0;
+    /**
+     * game.getFinalMinoPositions() in CANDIDATE_ORDER, remembered for the last view asked about: within one move
+     * shouldExplore, getExplorationMove and getBestActionAndQValue all look at the same view, and the positions are
+     * a BFS. The fixed order is what lets a fixed --seed pick the same exploration moves (and break ties the same
+     * way) every run.
+     */
+    public List<Mino> getCandidates(final GameView game) {
+        if (this.candidatesView != game) {
+            this.candidatesView = game;
+            this.candidates = new ArrayList<Mino>(game.getFinalMinoPositions());
+            this.candidates.sort(CANDIDATE_ORDER);
+            this.candidateQValues = null;
+        }
+        return this.candidates;
+    }
 
-        for (int col = 0; col < Board.NUM_COLS; col++) {
-            boolean foundBlock = false;
-            for (int row = 0; row < Board.NUM_ROWS; row++) {
-                if (board.isCoordinateOccupied(col, row)) {
-                    foundBlock = true;
-                } else if (foundBlock) {
-                    numberOfHoles++;
-                }
+    /**
+     * getQValues over getCandidates(game), remembered the same way, so an exploration move that looks at the
+     * Q-values costs no more forward passes than the greedy move it replaces.
+     */
+    public Matrix getCandidateQValues(final GameView game) throws Exception {
+        List<Mino> positions = this.getCandidates(game);
+        if (this.candidateQValues == null) {
+            this.candidateQValues = this.getQValues(game, positions);
+        }
+        return this.candidateQValues;
+    }
+
+    /**
+     * With -Dtetris.lookaheadMs set, plays the first placement of the best line found by a LookaheadSearch over
+     * the preview instead of the greedy argmax. Only moves change: TrainerAgent goes through
+     * getBestActionAndQValue for its moves and Bellman targets, so training is unaffected.
+     */
+    @Override
+    public Mino makeMove(final GameView game) {
+        if (LOOKAHEAD_BUDGET_MS <= 0) {
+            if (INFERENCE_PRECISION != null && this.canExportQFunction) {
+                return this.getInferenceMove(game);
             }
+            return super.makeMove(game);
+        }
+        if (this.lookaheadSearch == null) {
+            this.lookaheadSearch = new LookaheadSearch(this, LOOKAHEAD_BEAM_WIDTH, LOOKAHEAD_GAMMA,
+                                                       LOOKAHEAD_REWARD_WEIGHTS);
         }
-        return numberOfHoles;
+
+        Mino action = null;
+        try {
+            action = this.lookaheadSearch.search(game, System.nanoTime() + LOOKAHEAD_BUDGET_MS * 1_000_000L);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        return action;
     }
 
-    private int getBumpiness(Board board) {
-        int lastHeight = 0;
-        int bumpiness = 0;
-        boolean isFirstColumn = true;
-    
-        for (int col = 0; col < Board.NUM_COLS; col++) {
-            int currentHeight = 0;
-            for (int row = 0; row < Board.NUM_ROWS; row++) {
-                if (board.isCoordinateOccupied(col, row)) {
-                    currentHeight = Board.NUM_ROWS - row;
-                    break;
-                }
+    /**
+     * The greedy move, picked by the reduced precision export of the current q-function. The export is rebuilt
+     * lazily after every parameter update, and the input rows are reused between moves.
+     */
+    private Mino getInferenceMove(final GameView game) {
+        if (this.inferenceQFunction == null) {
+            try {
+                this.inferenceQFunction = InferenceQFunction.export(this.getQFunction(), INFERENCE_PRECISION);
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.out.println("[INFO] TetrisQAgent.makeMove: -Dtetris.inference ignored, picking moves with "
+                    + "the double precision q-function");
+                this.canExportQFunction = false;
+                return super.makeMove(game);
             }
-            if (!isFirstColumn) {
-                bumpiness += Math.abs(currentHeight - lastHeight);
-            } else {
-                isFirstColumn = false;
+        }
+
+        List<Mino> positions = this.getCandidates(game);
+        int numFeatures = this.inferenceQFunction.getInputDim();
+        if (this.inferenceInputs == null || this.inferenceInputs.getShape().getNumRows() < positions.size()) {
+            this.inferenceInputs = Matrix.zeros(Math.max(positions.size(), 64), numFeatures);
+        } else {
+            for (int i = 0; i < positions.size(); i++) {
+                for (int j = 0; j < numFeatures; j++) {
+                    this.inferenceInputs.set(i, j, 0.0);
+                }
             }
-            lastHeight = currentHeight;
         }
-        return bumpiness;
-    }    
 
-    private int getMaxHeight(Board board) {
-        int maxHeight = 0;
+        long startNanos = this.getTelemetry() != null ? System.nanoTime() : 0;
+        BoardProfile profile = this.getBoardProfile(game);
+        for (int i = 0; i < positions.size(); i++) {
+            this.setQFunctionInput(this.inferenceInputs, i, game, profile, positions.get(i));
+        }
+        long featureNanos = this.getTelemetry() != null ? System.nanoTime() : 0;
+        Mino action = positions.get(this.inferenceQFunction.argmax(this.inferenceInputs, positions.size()));
+        this.recordDecision(startNanos, featureNanos);
+        return action;
+    }
 
-        for (int col = 0; col < Board.NUM_COLS; col++) {
-            for (int row = 0; row < Board.NUM_ROWS; row++) {
-                if (board.isCoordinateOccupied(col, row)) {
-                    // column height from first occupied cell found in column
-                    int colHeight = Board.NUM_ROWS - row;
-                    maxHeight = Math.max(maxHeight, colHeight);
-                    break;
+    /**
+     * @return a (positions.size(), 1) column of Q-values, row i belonging to positions.get(i)
+     *
+     * Candidates whose input is already in the QValueCache are not run through the network, and candidates with
+     * identical inputs (symmetric rotations of the same cells) share one row of the forward pass.
+     */
+    public Matrix getQValues(final GameView game, final List<Mino> positions) throws Exception {
+        int numFeatures = Board.NUM_COLS * Board.NUM_ROWS + 11;
+        long startNanos = this.getTelemetry() != null ? System.nanoTime() : 0;
+        QValueCache cache = this.getQValueCache();
+        if (cache == null) {
+            Matrix inputs = Matrix.zeros(positions.size(), numFeatures);
+            for (int i = 0; i < positions.size(); i++) {
+                this.setQFunctionInput(inputs, i, game, positions.get(i));
+            }
+            long featureNanos = this.getTelemetry() != null ? System.nanoTime() : 0;
+            Matrix qValues = this.forwardQFunction(inputs);
+            this.recordDecision(startNanos, featureNanos);
+            return qValues;
+        }
+
+        BoardProfile profile = this.getBoardProfile(game);
+        long boardKey = QValueCache.hashBoard(profile, this.getAdditionalFeatures(game, profile));
+        Matrix qValues = Matrix.zeros(positions.size(), 1);
+        long[] keys = new long[positions.size()];
+        int[] missRows = new int[positions.size()];    // row of the forward pass each candidate reads, -1 = cached
+        List<Mino> misses = new ArrayList<Mino>();
+        for (int i = 0; i < positions.size(); i++) {
+            keys[i] = QValueCache.hashPlacement(boardKey, positions.get(i));
+            int slot = cache.find(keys[i]);
+            missRows[i] = -1;
+            if (slot >= 0) {
+                qValues.set(i, 0, cache.getValue(slot));
+                continue;
+            }
+            for (int j = 0; j < i && missRows[i] < 0; j++) {
+                if (missRows[j] >= 0 && keys[j] == keys[i]) {
+                    missRows[i] = missRows[j];
                 }
             }
+            if (missRows[i] < 0) {
+                missRows[i] = misses.size();
+                misses.add(positions.get(i));
+            }
         }
-        return maxHeight;
-    }
-    
-    private int getMinHeight(Board board) {
-        // start w max height
-        int minHeight = Board.NUM_ROWS;
 
-        for (int col = 0; col < Board.NUM_COLS; col++) {
-            for (int row = 0; row < Board.NUM_ROWS; row++) {
-                if (board.isCoordinateOccupied(col, row)) {
-                    // column height from first occupied cell found in column
-                    int colHeight = Board.NUM_ROWS - row;
-                    minHeight = Math.min(minHeight, colHeight);
-                    break;
+        long featureNanos = 0;
+        if (!misses.isEmpty()) {
+            Matrix inputs = Matrix.zeros(misses.size(), numFeatures);
+            for (int i = 0; i < misses.size(); i++) {
+                this.setQFunctionInput(inputs, i, game, misses.get(i));
+            }
+            featureNanos = this.getTelemetry() != null ? System.nanoTime() : 0;
+            Matrix missQValues = this.forwardQFunction(inputs);
+            for (int i = 0; i < positions.size(); i++) {
+                if (missRows[i] >= 0) {
+                    qValues.set(i, 0, missQValues.get(missRows[i], 0));
+                    cache.put(keys[i], missQValues.get(missRows[i], 0));
                 }
             }
+        } else if (this.getTelemetry() != null) {
+            featureNanos = System.nanoTime();
         }
-        return minHeight;
+        this.recordDecision(startNanos, featureNanos);
+        return qValues;
     }
-    
-    private int getTotalHeight(Board board) {
-        // cumulative height of all columns by adding up heights of first occupied 
-        // cell found in each column from top down
-        int totalHeight = 0;
 
-        for (int col = 0; col < Board.NUM_COLS; col++) {
-            for (int row = 0; row < Board.NUM_ROWS; row++) {
-                if (board.isCoordinateOccupied(col, row)) {
-                    totalHeight += (Board.NUM_ROWS - row);
-                    break;
-                }
+    /**
+     * Counts one argmax over the candidates (a move, or one of TrainerAgent's Bellman targets) in the telemetry:
+     * inputs were built from startNanos to featureNanos, and the q-function ran from featureNanos until now.
+     */
+    private void recordDecision(long startNanos, long featureNanos) {
+        if (this.getTelemetry() != null) {
+            this.getTelemetry().addDecision(featureNanos - startNanos, System.nanoTime() - featureNanos);
+        }
+    }
+
+    private Matrix forwardQFunction(Matrix inputs) throws Exception {
+        int numRows = inputs.getShape().getNumRows();
+        Matrix qValues = this.getQFunction().forward(inputs);
+        if (qValues.getShape().getNumRows() != numRows || qValues.getShape().getNumCols() != 1) {
+            throw new Exception("[ERROR] TetrisQAgent.getQValues: output of Qfunction should have shape ("
+                + numRows + ",1) but got " + qValues.getShape());
+        }
+        return qValues;
+    }
+
+    /**
+     * Forgets every cached Q-value (and the inference export and remembered candidates). Needed whenever the
+     * q-function's parameters change outside trainQFunction (which already calls it), e.g. after copying parameters
+     * into this agent.
+     */
+    public void invalidateQValueCache() {
+        this.inferenceQFunction = null;
+        this.candidatesView = null;
+        this.candidates = null;
+        this.candidateQValues = null;
+        QValueCache cache = this.getQValueCache();
+        if (cache != null) {
+            if (cache.getNumHits() + cache.getNumMisses() > 0) {
+                System.out.println("[INFO] TetrisQAgent.invalidateQValueCache: " + cache.getNumHits() + " hit(s), "
+                    + cache.getNumMisses() + " miss(es) since the last parameter update");
             }
+            cache.invalidate();
         }
-        return totalHeight;
     }
 
     /**
-     * This method is used to decide if we should follow our current policy
-     * (i.e. our q-function), or if we should ignore it and take a random action
-     * (i.e. explore).
-     *
-     * Remember, as the q-function learns, it will start to predict the same "good" actions
-     * over and over again. This can prevent us from discovering new, potentially even
-     * better states, which we want to do! So, sometimes we should ignore our policy
-     * and explore to gain novel experiences.
-     *
-     * The current implementation chooses to ignore the current policy around 5% of the time.
-     * While this strategy is easy to implement, it often doesn't perform well and is
-     * really sensitive to the EXPLORATION_PROB. I would recommend devising your own
-     * strategy here.
+     * Writes the features of potentialAction into row rowIdx of dst, which must be all zeros in that row.
      */
-    
-    @Override
-    public boolean shouldExplore(final GameView game,
-                                final GameCounter gameCounter)
-    {
-        return this.getRandom().nextDouble() <= EXPLORATION_PROB;
+    private void setQFunctionInput(Matrix dst, int rowIdx, final GameView game, final Mino potentialAction) {
+        this.setQFunctionInput(dst, rowIdx, game, this.getBoardProfile(game), potentialAction);
+    }
+
+    // for callers off the game thread, which must not go through the single-entry getBoardProfile cache
+    private void setQFunctionInput(Matrix dst, int rowIdx, final GameView game, final BoardProfile profile,
+                                   final Mino potentialAction) {
+        int numPixels = Board.NUM_COLS * Board.NUM_ROWS;
+        int numAdditionalFeatures = 11;
+
+        // Set grayscale pixels: the background comes from the profile, only the mino's cells differ per candidate
+        profile.copyGrayscaleImage(dst, rowIdx, potentialAction);
+
+        int[] features = this.getAdditionalFeatures(game, profile);
+        for (int i = 0; i < numAdditionalFeatures; i++) {
+            dst.set(rowIdx, numPixels + i, features[i]);
+        }
     }
 
     /**
-     * This method is a counterpart to the "shouldExplore" method. Whenever we decide
-    * that we should ignore our policy, we now have to actually choose an action.
-    *
-    * You should come up with a way of choosing an action so that the model gets
-    * to experience something new. The current implemention just chooses a random
-    * option, which in practice doesn't work as well as a more guided strategy.
-    * I would recommend devising your own strategy here.
-    */
-    @Override
-    public Mino getExplorationMove(final GameView game)
-    {
-        int randIdx = this.getRandom().nextInt(game.getFinalMinoPositions().size());
-        return game.getFinalMinoPositions().get(randIdx);
+     * The engineered features after the pixels, the same for every candidate of a turn.
+     */
+    private int[] getAdditionalFeatures(final GameView game, final BoardProfile profile) {
+        // Extract and set additional features
+        int[] features = {
+            game.getScoreThisTurn(),
+            getNextMino(game),
+            game.getTotalScore(),
+            profile.getNumberOfHoles(),
+            profile.getBumpiness(),
+            profile.getMaxHeight(),
+            profile.getMinHeight(),
+            profile.getTotalHeight(),
+            // getTransitions(game.getBoard()),
+            // calculateWellSums(game.getBoard()),
+            // countBlockades(game.getBoard())
+            0,
+            0,
+            0 // placeholders
+        };
+        return features;
     }
 
+    // helper functions for features
+    private int getNextMino(GameView game) { 
+        Mino.MinoType nextMino = null;
+        List<Mino.MinoType> nextMinos = game.getNextThreeMinoTypes(); 
 
+        if (!nextMinos.isEmpty()) {
+            nextMino = nextMinos.get(0);
+        }
+        return nextMino.ordinal();
+    }
 
     /**
-     * This method is called by the TrainerAgent after we have played enough training games.
-     * In between the training section and the evaluation section of a phase, we need to use
-     * the exprience we've collected (from the training games) to improve the q-function.
+     * The board is the same for every candidate in getFinalMinoPositions(), so it is scanned once per turn.
+     * The Game hands out a new GameView every turn, so the view itself is the cache key.
+     */
+    public BoardProfile getBoardProfile(final GameView game) {
+        BoardProfile profile = this.boardProfile;
+        if (profile == null || profile.getGame() != game) {
+            profile = new BoardProfile(game);
+            this.boardProfile = profile;
+        }
+        return profile;
+    }
+
+    /**
+     * Everything the features and the reward need to know about a board, from a single pass over it: a bitmask
+     * of the occupied cells of every row and of every column, from which the column heights, holes per column and
+     * filled cells per row are a few bit operations.
      *
-     * You don't really need to change this method unless you want to. All that happens
-     * is that we will use the experiences currently stored in the replay buffer to update
-     * our model. Updates (i.e. gradient descent updates) will be applied per minibatch
-     * (i.e. a subset of the entire dataset) rather than in a vanilla gradient descent manner
-     * (i.e. all at once)...this often works better and is an active area of research.
+     * Heights are measured from the floor (row 0 is the top of the board), and a hole is an empty cell with an
+     * occupied cell somewhere above it in the same column.
+     */
+    public static class BoardProfile {
+        private final GameView game;
+        private final int[] columnHeights;  // [col]
+        private final int[] columnHoles;    // [col]
+        private final int[] rowMasks;       // [row], bit col set if (col, row) is occupied
+        private final int[] occupiedCells;  // row * NUM_COLS + col, top to bottom
+        private int numOccupied;
+        private int numNearlyFullRows;      // rows one cell short of clearing
+
+        private int numberOfHoles;
+        private int bumpiness;
+        private int maxHeight;
+        private int minHeight;
+        private int totalHeight;
+
+        public BoardProfile(final GameView game) {
+            this.game = game;
+            this.columnHeights = new int[Board.NUM_COLS];
+            this.columnHoles = new int[Board.NUM_COLS];
+            this.rowMasks = new int[Board.NUM_ROWS];
+            this.occupiedCells = new int[Board.NUM_ROWS * Board.NUM_COLS];
+            this.numOccupied = 0;
+            this.numNearlyFullRows = 0;
+
+            // bit (NUM_ROWS - 1 - row) of columnMasks[col] set if (col, row) is occupied, so the highest set bit
+            // is the column's height
+            int[] columnMasks = new int[Board.NUM_COLS];
+            Board board = game.getBoard();
+            for (int row = 0; row < Board.NUM_ROWS; row++) {
+                int rowMask = 0;
+                int rowBit = 1 << (Board.NUM_ROWS - 1 - row);
+                for (int col = 0; col < Board.NUM_COLS; col++) {
+                    if (board.isCoordinateOccupied(col, row)) {
+                        rowMask |= 1 << col;
+                        columnMasks[col] |= rowBit;
+                        this.occupiedCells[this.numOccupied++] = row * Board.NUM_COLS + col;
+                    }
+                }
+                this.rowMasks[row] = rowMask;
+                if (Integer.bitCount(rowMask) == Board.NUM_COLS - 1) {
+                    this.numNearlyFullRows++;
+                }
+            }
+
+            // empty columns count towards the bumpiness (as height 0) but not towards the min height
+            this.maxHeight = 0;
+            this.minHeight = Board.NUM_ROWS;
+            for (int col = 0; col < Board.NUM_COLS; col++) {
+                int height = Integer.SIZE - Integer.numberOfLeadingZeros(columnMasks[col]);
+                this.columnHeights[col] = height;
+                this.columnHoles[col] = height - Integer.bitCount(columnMasks[col]);
+                this.numberOfHoles += this.columnHoles[col];
+                this.totalHeight += height;
+                this.maxHeight = Math.max(this.maxHeight, height);
+                if (height > 0) {
+                    this.minHeight = Math.min(this.minHeight, height);
+                }
+                if (col > 0) {
+                    this.bumpiness += Math.abs(height - this.columnHeights[col - 1]);
+                }
+            }
+        }
+
+        public final GameView getGame() { return this.game; }
+        public int getColumnHeight(int col) { return this.columnHeights[col]; }
+        public int getColumnHoles(int col) { return this.columnHoles[col]; }
+        public int getRowMask(int row) { return this.rowMasks[row]; }
+        public int getRowFill(int row) { return Integer.bitCount(this.rowMasks[row]); }
+        public int getNumNearlyFullRows() { return this.numNearlyFullRows; }
+        public int getNumOccupied() { return this.numOccupied; }
+        public int getOccupiedCell(int i) { return this.occupiedCells[i]; }
+
+        public int getNumberOfHoles() { return this.numberOfHoles; }
+        public int getBumpiness() { return this.bumpiness; }
+        public int getMaxHeight() { return this.maxHeight; }
+        public int getMinHeight() { return this.minHeight; }
+        public int getTotalHeight() { return this.totalHeight; }
+
+        /**
+         * Writes game.getGrayscaleImage(potentialAction).flatten() into the first NUM_ROWS * NUM_COLS entries of
+         * row rowIdx of dst, which must already be zero there.
+         */
+        public void copyGrayscaleImage(Matrix dst, int rowIdx, final Mino potentialAction) {
+            for (int i = 0; i < this.numOccupied; i++) {
+                dst.set(rowIdx, this.occupiedCells[i], GameView.BACKGROUND_BLOCK_VALUE);
+            }
+            for (Block block : potentialAction.getBlocks()) {
+                Coordinate coord = block.getCoordinate();
+                dst.set(rowIdx, coord.getYCoordinate() * Board.NUM_COLS + coord.getXCoordinate(),
+                        GameView.CURRENT_BLOCK_PLACEMENT_VALUE);
+            }
+        }
+    }
+
+    /**
+     * The first layer of the CONV q-function: reads the pixels of every input row back into the 22 x 10 image,
+     * convolves it with numKernels KERNEL_SIZE x KERNEL_SIZE kernels (valid padding, stride 1), applies ReLU and a
+     * POOL_SIZE x POOL_SIZE max pool (stride POOL_SIZE), and emits the pooled maps followed by the row's engineered
+     * features unchanged, so a whole batch of candidates still goes through one forward.
      *
-     * Each pass through the data is called an epoch, and we will perform "numUpdates" amount
-     * of epochs in between the training and eval sections of each phase.
+     * The jar's Conv2dMaxPool only takes a single image per forward (and returns -Double.MAX_VALUE everywhere in
+     * this version), hence this one. Initialized with randn and accumulating gradients like Dense.
      */
-    @Override
-    public void trainQFunction(Dataset dataset,
-                               LossFunction lossFunction,
-                               Optimizer optimizer,
-                               long numUpdates)
-    {
-        for(int epochIdx = 0; epochIdx < numUpdates; ++epochIdx)
-        {
-            dataset.shuffle();
-            Iterator<Pair<Matrix, Matrix> > batchIterator = dataset.iterator();
+    public static class BoardConvEncoder extends Module {
+        public static final int NUM_PIXELS = Board.NUM_ROWS * Board.NUM_COLS;
+        public static final int KERNEL_SIZE = 3;
+        public static final int POOL_SIZE = 2;
+        public static final int CONV_ROWS = Board.NUM_ROWS - KERNEL_SIZE + 1;
+        public static final int CONV_COLS = Board.NUM_COLS - KERNEL_SIZE + 1;
+        public static final int POOLED_ROWS = CONV_ROWS / POOL_SIZE;
+        public static final int POOLED_COLS = CONV_COLS / POOL_SIZE;
+        public static final int POOLED_SIZE = POOLED_ROWS * POOLED_COLS;
 
-            while(batchIterator.hasNext())
-            {
-                Pair<Matrix, Matrix> batch = batchIterator.next();
+        private final int numKernels;
+        private final int numExtraFeatures;
+        private final List<Parameter> kernels;  // (KERNEL_SIZE, KERNEL_SIZE) each
+        private final Parameter bias;           // (1, numKernels)
 
-                try
-                {
-                    Matrix YHat = this.getQFunction().forward(batch.getFirst());
+        public BoardConvEncoder(int numKernels, int numExtraFeatures, Random random) {
+            this.numKernels = numKernels;
+            this.numExtraFeatures = numExtraFeatures;
+            this.kernels = new ArrayList<Parameter>(numKernels);
+            for (int k = 0; k < numKernels; k++) {
+                this.kernels.add(new Parameter(Matrix.randn(KERNEL_SIZE, KERNEL_SIZE, random)));
+            }
+            this.bias = new Parameter(Matrix.randn(1, numKernels, random));
+        }
 
-                    optimizer.reset();
-                    this.getQFunction().backwards(batch.getFirst(),
-                                                  lossFunction.backwards(YHat, batch.getSecond()));
-                    optimizer.step();
-                } catch(Exception e)
-                {
-                    e.printStackTrace();
-                    System.exit(-1);
+        public final int getNumKernels() { return this.numKernels; }
+        public final List<Parameter> getKernels() { return this.kernels; }
+        public final Parameter getBias() { return this.bias; }
+        public int getOutputDim() { return this.numKernels * POOLED_SIZE + this.numExtraFeatures; }
+
+        @Override
+        public Matrix forward(Matrix X) throws Exception {
+            int numRows = X.getShape().getNumRows();
+            double[][] kernels = this.getKernelValues();
+            double[] image = new double[NUM_PIXELS];
+            double[] conv = new double[CONV_ROWS * CONV_COLS];
+            Matrix Y = Matrix.zeros(numRows, this.getOutputDim());
+            for (int rowIdx = 0; rowIdx < numRows; rowIdx++) {
+                this.readImage(X, rowIdx, image);
+                for (int k = 0; k < this.numKernels; k++) {
+                    convolve(image, kernels[k], this.getBias().getValue().get(0, k), conv);
+                    for (int p = 0; p < POOLED_SIZE; p++) {
+                        // max(ReLU(z)) = ReLU(max(z))
+                        Y.set(rowIdx, k * POOLED_SIZE + p, Math.max(0.0, conv[getPoolArgmax(conv, p)]));
+                    }
+                }
+                for (int f = 0; f < this.numExtraFeatures; f++) {
+                    Y.set(rowIdx, this.numKernels * POOLED_SIZE + f, X.get(rowIdx, NUM_PIXELS + f));
+                }
+            }
+            return Y;
+        }
+
+        @Override
+        public Matrix backwards(Matrix X, Matrix dLdY) throws Exception {
+            int numRows = X.getShape().getNumRows();
+            double[][] kernels = this.getKernelValues();
+            double[] image = new double[NUM_PIXELS];
+            double[] conv = new double[CONV_ROWS * CONV_COLS];
+            Matrix dLdX = Matrix.zeros(numRows, X.getShape().getNumCols());
+            Matrix[] dLdK = new Matrix[this.numKernels];
+            Matrix dLdB = Matrix.zeros(1, this.numKernels);
+            for (int k = 0; k < this.numKernels; k++) {
+                dLdK[k] = Matrix.zeros(KERNEL_SIZE, KERNEL_SIZE);
+            }
+
+            for (int rowIdx = 0; rowIdx < numRows; rowIdx++) {
+                this.readImage(X, rowIdx, image);
+                for (int k = 0; k < this.numKernels; k++) {
+                    convolve(image, kernels[k], this.getBias().getValue().get(0, k), conv);
+                    for (int p = 0; p < POOLED_SIZE; p++) {
+                        int argmax = getPoolArgmax(conv, p);
+                        double grad = dLdY.get(rowIdx, k * POOLED_SIZE + p);
+                        if (conv[argmax] <= 0.0 || grad == 0.0) {
+                            continue;
+                        }
+
+                        int i = argmax / CONV_COLS;
+                        int j = argmax % CONV_COLS;
+                        dLdB.set(0, k, dLdB.get(0, k) + grad);
+                        for (int u = 0; u < KERNEL_SIZE; u++) {
+                            for (int v = 0; v < KERNEL_SIZE; v++) {
+                                int pixel = (i + u) * Board.NUM_COLS + (j + v);
+                                dLdK[k].set(u, v, dLdK[k].get(u, v) + grad * image[pixel]);
+                                dLdX.set(rowIdx, pixel, dLdX.get(rowIdx, pixel) + grad * kernels[k][u * KERNEL_SIZE + v]);
+                            }
+                        }
+                    }
+                }
+                for (int f = 0; f < this.numExtraFeatures; f++) {
+                    dLdX.set(rowIdx, NUM_PIXELS + f, dLdY.get(rowIdx, this.numKernels * POOLED_SIZE + f));
+                }
+            }
+
+            for (int k = 0; k < this.numKernels; k++) {
+                Parameter kernel = this.getKernels().get(k);
+                kernel.setGradient(kernel.getGradient().add(dLdK[k]));
+            }
+            this.getBias().setGradient(this.getBias().getGradient().add(dLdB));
+            return dLdX;
+        }
+
+        @Override
+        public List<Parameter> getParameters() {
+            List<Parameter> params = new ArrayList<Parameter>(this.getKernels());
+            params.add(this.getBias());
+            return params;
+        }
+
+        private double[][] getKernelValues() {
+            double[][] values = new double[this.numKernels][KERNEL_SIZE * KERNEL_SIZE];
+            for (int k = 0; k < this.numKernels; k++) {
+                Matrix kernel = this.getKernels().get(k).getValue();
+                for (int u = 0; u < KERNEL_SIZE; u++) {
+                    for (int v = 0; v < KERNEL_SIZE; v++) {
+                        values[k][u * KERNEL_SIZE + v] = kernel.get(u, v);
+                    }
+                }
+            }
+            return values;
+        }
+
+        private void readImage(Matrix X, int rowIdx, double[] image) {
+            for (int pixel = 0; pixel < NUM_PIXELS; pixel++) {
+                image[pixel] = X.get(rowIdx, pixel);
+            }
+        }
+
+        // conv[i * CONV_COLS + j] = bias + sum_{u,v} kernel[u][v] * image[i + u][j + v], before the ReLU
+        private static void convolve(double[] image, double[] kernel, double bias, double[] conv) {
+            for (int i = 0; i < CONV_ROWS; i++) {
+                for (int j = 0; j < CONV_COLS; j++) {
+                    double z = bias;
+                    for (int u = 0; u < KERNEL_SIZE; u++) {
+                        int offset = (i + u) * Board.NUM_COLS + j;
+                        for (int v = 0; v < KERNEL_SIZE; v++) {
+                            z += kernel[u * KERNEL_SIZE + v] * image[offset + v];
+                        }
+                    }
+                    conv[i * CONV_COLS + j] = z;
+                }
+            }
+        }
+
+        // index into conv of the first largest cell in pooled cell p's window
+        private static int getPoolArgmax(double[] conv, int p) {
+            int top = (p / POOLED_COLS) * POOL_SIZE;
+            int left = (p % POOLED_COLS) * POOL_SIZE;
+            int argmax = top * CONV_COLS + left;
+            for (int i = top; i < top + POOL_SIZE; i++) {
+                for (int j = left; j < left + POOL_SIZE; j++) {
+                    if (conv[i * CONV_COLS + j] > conv[argmax]) {
+                        argmax = i * CONV_COLS + j;
+                    }
                 }
             }
+            return argmax;
         }
     }
 
     /**
-     * This method is where you will devise your own reward signal. Remember, the larger
-     * the number, the more "pleasurable" it is to the model, and the smaller the number,
-     * the more "painful" to the model.
+     * A bounded map from a 64 bit Zobrist hash of a Q-function input to its Q-value.
      *
-     * This is where you get to tell the model how "good" or "bad" the game is.
-     * Since you earn points in this game, the reward should probably be influenced by the
-     * points, however this is not all. In fact, just using the points earned this turn
-     * is a **terrible** reward function, because earning points is hard!!
+     * The key XORs one random word per grayscale pixel that is not empty (background and placement cells get
+     * different words) with a mix of every engineered feature, so two candidates share a key exactly when their
+     * inputs match (up to hash collisions, ~2^-64 per pair). The board part is hashed once per turn and each
+     * placement only XORs in its four cells.
      *
-     * I would recommend you to consider other ways of measuring "good"ness and "bad"ness
-     * of the game. For instance, the higher the stack of minos gets....generally the worse
-     * (unless you have a long hole waiting for an I-block). When you design a reward
-     * signal that is less sparse, you should see your model optimize this reward over time.
+     * Entries live in buckets of WAYS slots picked by the low bits of the key; a full bucket evicts with CLOCK
+     * (second chance on the referenced bit). Every entry carries the epoch it was written in and invalidate() just
+     * bumps the epoch, so dropping the whole cache after a parameter update is O(1).
      */
-    // CURRENTLY TESTING THIS OUT -- REFER TO BESTSUB.JAVA FOR GETREWARD
-    @Override
-    public double getReward(final GameView game) {
-        double score = game.getScoreThisTurn() * 10;
-        Board gameBoard = game.getBoard();
-        double penaltyForHeight = getMaxHeight(gameBoard) * 0.2;
-        double penaltyForHoles = getNumberOfHoles(gameBoard) * 1.5;
-        double penaltyForBumpiness = getBumpiness(gameBoard) * 0.5;
-        double penaltyForWhiteSpace = 0.0;
-
-        int cols = Board.NUM_COLS;
-        int rows = Board.NUM_ROWS;
-        double rewardForLineCompletion = 0.0;
-        
-        for (int i = 0; i < rows; i++) {
-            int occupied = 0;
-            for (int j = 0; j < cols; j++) {
-                if (game.getBoard().isCoordinateOccupied(j, i)) {
-                    occupied++;
-                }
+    public static class QValueCache {
+        public static final int WAYS = 8;
+
+        private static final long SEED = 0x5eedL;
+        // [cell * 2] for a background pixel, [cell * 2 + 1] for a placement pixel
+        private static final long[] CELL_KEYS = new long[2 * Board.NUM_ROWS * Board.NUM_COLS];
+        static {
+            Random random = new Random(SEED);
+            for (int i = 0; i < CELL_KEYS.length; i++) {
+                CELL_KEYS[i] = random.nextLong();
             }
-            int emptySpaces = cols - occupied;
-            if (emptySpaces > 0 && emptySpaces < 2) {
-                rewardForLineCompletion += Math.pow(2, occupied); 
+        }
+
+        private final int bucketMask;
+        private final long[] keys;
+        private final double[] values;
+        private final int[] epochs;         // 0 = never written
+        private final boolean[] referenced;
+        private final int[] hands;          // [bucket], CLOCK hand within the bucket
+        private int epoch;
+        private long numHits;
+        private long numMisses;
+
+        public QValueCache(int capacity) {
+            int numBuckets = 1;
+            while (numBuckets * WAYS < capacity) {
+                numBuckets <<= 1;
+            }
+            this.bucketMask = numBuckets - 1;
+            this.keys = new long[numBuckets * WAYS];
+            this.values = new double[numBuckets * WAYS];
+            this.epochs = new int[numBuckets * WAYS];
+            this.referenced = new boolean[numBuckets * WAYS];
+            this.hands = new int[numBuckets];
+            this.epoch = 1;
+            this.numHits = 0;
+            this.numMisses = 0;
+        }
+
+        public int getCapacity() { return this.keys.length; }
+        public long getNumHits() { return this.numHits; }
+        public long getNumMisses() { return this.numMisses; }
+
+        /**
+         * Hash of everything in the input except the placement: the background pixels and the engineered features.
+         */
+        public static long hashBoard(final BoardProfile profile, final int[] features) {
+            long key = SEED;
+            for (int i = 0; i < profile.getNumOccupied(); i++) {
+                key ^= CELL_KEYS[2 * profile.getOccupiedCell(i)];
+            }
+            for (int i = 0; i < features.length; i++) {
+                key ^= mix(((long) i << 32) ^ (features[i] & 0xffffffffL));
             }
-            else {
-                penaltyForWhiteSpace += 1; 
+            return key;
+        }
+
+        /**
+         * Adds the placement pixels to a hashBoard key. Final positions never overlap the background.
+         */
+        public static long hashPlacement(long boardKey, final Mino potentialAction) {
+            long key = boardKey;
+            for (Block block : potentialAction.getBlocks()) {
+                Coordinate coord = block.getCoordinate();
+                key ^= CELL_KEYS[2 * (coord.getYCoordinate() * Board.NUM_COLS + coord.getXCoordinate()) + 1];
+            }
+            return key;
+        }
+
+        /**
+         * The occupied cells alone, no features: two views with the same board get the same key.
+         */
+        public static long hashOccupancy(final BoardProfile profile) {
+            long key = SEED;
+            for (int i = 0; i < profile.getNumOccupied(); i++) {
+                key ^= CELL_KEYS[2 * profile.getOccupiedCell(i)];
             }
+            return key;
         }
 
-        double reward = score - (penaltyForHeight + penaltyForHoles + penaltyForBumpiness + penaltyForWhiteSpace) + rewardForLineCompletion;
-        return reward;
+        /**
+         * The hashOccupancy key of the board the placement leaves once its full lines have cleared, i.e. of the
+         * next view's board.
+         */
+        public static long hashOccupancy(final BoardProfile profile, final Mino potentialAction) {
+            int[] rowMasks = new int[Board.NUM_ROWS];
+            for (int row = 0; row < Board.NUM_ROWS; row++) {
+                rowMasks[row] = profile.getRowMask(row);
+            }
+            for (Block block : potentialAction.getBlocks()) {
+                Coordinate coord = block.getCoordinate();
+                rowMasks[coord.getYCoordinate()] |= 1 << coord.getXCoordinate();
+            }
+
+            // full rows drop out and everything above them moves down, as in Board.clearFullLines
+            long key = SEED;
+            int dstRow = Board.NUM_ROWS - 1;
+            for (int row = Board.NUM_ROWS - 1; row >= 0; row--) {
+                if (rowMasks[row] == (1 << Board.NUM_COLS) - 1) {
+                    continue;
+                }
+                for (int mask = rowMasks[row]; mask != 0; mask &= mask - 1) {
+                    key ^= CELL_KEYS[2 * (dstRow * Board.NUM_COLS + Integer.numberOfTrailingZeros(mask))];
+                }
+                dstRow--;
+            }
+            return key;
+        }
+
+        // splitmix64 finalizer
+        private static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            return z ^ (z >>> 31);
+        }
+
+        /**
+         * @return the slot holding key in the current epoch, or -1
+         */
+        public int find(long key) {
+            int first = ((int) key & this.bucketMask) * WAYS;
+            for (int slot = first; slot < first + WAYS; slot++) {
+                if (this.epochs[slot] == this.epoch && this.keys[slot] == key) {
+                    this.referenced[slot] = true;
+                    this.numHits++;
+                    return slot;
+                }
+            }
+            this.numMisses++;
+            return -1;
+        }
+
+        public double getValue(int slot) { return this.values[slot]; }
+
+        public void put(long key, double value) {
+            int bucket = (int) key & this.bucketMask;
+            int first = bucket * WAYS;
+            int victim = -1;
+            for (int slot = first; slot < first + WAYS && victim < 0; slot++) {
+                if (this.epochs[slot] != this.epoch || this.keys[slot] == key) {
+                    victim = slot;
+                }
+            }
+            while (victim < 0) {
+                int slot = first + this.hands[bucket];
+                this.hands[bucket] = (this.hands[bucket] + 1) % WAYS;
+                if (this.referenced[slot]) {
+                    this.referenced[slot] = false;
+                } else {
+                    victim = slot;
+                }
+            }
+            this.keys[victim] = key;
+            this.values[victim] = value;
+            this.epochs[victim] = this.epoch;
+            this.referenced[victim] = false;
+        }
+
+        public void invalidate() {
+            this.epoch++;
+            this.numHits = 0;
+            this.numMisses = 0;
+        }
+    }
+
+    /**
+     * A Game that is never played, used to apply a placement to a GameView exactly the way Game.update would
+     * (top-out check, t-spin detection, line clears, scoring, spawning the next mino and finding its final
+     * positions) without touching the real game. Not thread safe, use one per thread.
+     */
+    public static class SimulatedGame extends Game {
+        private GameView parent;
+        private Map<Mino, Game.BFSNode> parentFinalPositions;
+
+        public SimulatedGame() {
+            super(new LinkedList<MinoType>(), null);
+            this.parent = null;
+            this.parentFinalPositions = null;
+        }
+
+        /**
+         * @return the view after placing action (one of view.getFinalMinoPositions()) in view, or null if that ends
+         *         the game
+         */
+        public GameView play(final GameView view, final Mino action) {
+            this.load(view);
+            if (this.parent != view) {
+                // wasDoubleTSpin looks the placement up in the BFS that found it, redo that once per view by
+                // letting Game spawn the view's piece (wherever it spawns pieces) in front of the preview
+                this.getMinoTypesInGame().clear();
+                this.getMinoTypesInGame().add(action.getType());
+                this.getNextMino();
+                this.getMinoTypesInGame().addAll(view.getNextThreeMinoTypes());
+                this.parentFinalPositions = this.getFinalPositions();
+                this.parent = view;
+            }
+            this.setFinalPositions(this.parentFinalPositions);
+
+            // same order as Game.update, Game.isOver also ends the game once the queue runs out
+            this.getBoard().addMino(action);
+            if (this.isToppedOut() || this.getMinoTypesInGame().isEmpty()) {
+                return null;
+            }
+            boolean wasDoubleTSpin = this.wasDoubleTSpin(action);
+            boolean wasTSpin = this.wasTSpin(action);
+            this.score(this.getBoard().clearFullLines(), wasTSpin, wasDoubleTSpin);
+            this.getNextMino();
+            if (this.getFinalPositions() == null || this.getFinalPositions().isEmpty()) {
+                return null;
+            }
+
+            // the view gets its own board and queue, this game is reused for the next placement
+            return new GameView(new HashSet<Mino>(this.getFinalPositions().keySet()), new Board(this.getBoard()),
+                                new LinkedList<MinoType>(this.getMinoTypesInGame()), this.getTotalScore(),
+                                this.getScoreThisTurn());
+        }
+
+        /**
+         * @return the view Game shows when a minoType piece spawns on board with preview next in line, or null if
+         *         the piece has nowhere to go
+         */
+        public GameView spawn(final Board board, final MinoType minoType, final List<MinoType> preview,
+                              final int totalScore, final int scoreThisTurn) {
+            this.loadBoard(board);
+            this.getMinoTypesInGame().clear();
+            this.getMinoTypesInGame().add(minoType);
+            this.getNextMino();
+            this.getMinoTypesInGame().addAll(preview);
+            this.setTotalScore(totalScore);
+            this.setScoreThisTurn(scoreThisTurn);
+            if (this.getFinalPositions() == null || this.getFinalPositions().isEmpty()) {
+                return null;
+            }
+            // GameView copies the board and the first three types itself
+            return new GameView(this.getFinalPositions().keySet(), this.getBoard(), this.getMinoTypesInGame(),
+                                totalScore, scoreThisTurn);
+        }
+
+        private void load(final GameView view) {
+            this.loadBoard(view.getBoard());
+            this.getMinoTypesInGame().clear();
+            this.getMinoTypesInGame().addAll(view.getNextThreeMinoTypes());
+            this.setTotalScore(view.getTotalScore());
+            this.setScoreThisTurn(view.getScoreThisTurn());
+        }
+
+        private void loadBoard(final Board board) {
+            Block[][] src = board.getBoard();
+            Block[][] dst = this.getBoard().getBoard();
+            for (int row = 0; row < Board.NUM_ROWS; row++) {
+                System.arraycopy(src[row], 0, dst[row], 0, Board.NUM_COLS);
+            }
+        }
+
+        // the board part of Game.isOver
+        private boolean isToppedOut() {
+            for (int col = 0; col < Board.NUM_COLS; col++) {
+                if (this.getBoard().isCoordinateOccupied(col, 0) || this.getBoard().isCoordinateOccupied(col, 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Depth-limited beam search over the pieces in the preview, scored with the q-function.
+     *
+     * Level 0 is the greedy argmax. Level d plays d pieces (the current one, then the previewed ones in order) on
+     * a SimulatedGame and values each line of play the way the q-function's Bellman targets do:
+     * r_1 + gamma r_2 + ... + gamma^(d-1) r_d + gamma^d max_a Q(s_d, a). The preview is known, so there are no
+     * chance nodes and max is the only backup; the last previewed piece still enters through the next-mino feature
+     * of the deepest positions. Every position keeps only its beamWidth placements with the lowest
+     * getHeuristicCost (the holes/bumpiness/height penalties of the rewards).
+     *
+     * gamma and the rewards are the search's own (LOOKAHEAD_GAMMA, LOOKAHEAD_REWARD_WEIGHTS), not the trainer's:
+     * gamma is how much a piece placed one level deeper counts against the one before it, and the reward weights
+     * say what each placement along the line earns (RewardWeights.getReward of the position it leaves) before
+     * the q-function values whatever position is left at the end.
+     *
+     * Levels are built one from another (iterative deepening that reuses the previous frontier) until the preview
+     * runs out or the deadline passes, and the move comes from the deepest level that finished. Expanding a level
+     * and writing its leaves' features are split across the common ForkJoinPool, each worker with its own
+     * SimulatedGame; the q-function only runs on the calling thread, one batched forward per level, and a level
+     * whose forward (predicted from the last one's cost per row) would overrun the deadline is not started.
+     */
+    public static class LookaheadSearch {
+        // the leaves' views need a non-empty preview for the next-mino feature
+        public static final int MAX_DEPTH = 2;
+
+        private final TetrisQAgent agent;
+        private final int beamWidth;
+        private final double gamma;
+        private final RewardWeights rewardWeights;
+        private final ThreadLocal<SimulatedGame> simulatedGames;
+        private double forwardNanosPerRow;
+        private int lastDepth;
+
+        public LookaheadSearch(TetrisQAgent agent, int beamWidth, double gamma, RewardWeights rewardWeights) {
+            this.agent = agent;
+            this.beamWidth = beamWidth;
+            this.gamma = gamma;
+            this.rewardWeights = rewardWeights;
+            this.simulatedGames = ThreadLocal.withInitial(SimulatedGame::new);
+            this.forwardNanosPerRow = 0.0;
+            this.lastDepth = 0;
+        }
+
+        // deepest level that finished in the last search
+        public int getLastDepth() { return this.lastDepth; }
+
+        public double getHeuristicCost(final BoardProfile profile) {
+            return this.rewardWeights.getShapePenalty(profile);
+        }
+
+        // a position reached by playing out one of the root's placements
+        private static class Node {
+            private final int rootIdx;
+            private final int depth;
+            private final GameView view;
+            private final BoardProfile profile;
+            private final double discountedReturn;  // rewards collected on the way here
+
+            private Node(int rootIdx, int depth, GameView view, double parentReturn, double discount,
+                         RewardWeights rewardWeights) {
+                this.rootIdx = rootIdx;
+                this.depth = depth;
+                this.view = view;
+                this.profile = new BoardProfile(view);
+                this.discountedReturn = depth == 0 ? 0.0
+                    : parentReturn + discount * rewardWeights.getReward(view, this.profile);
+            }
+        }
+
+        public Mino search(final GameView game, long deadlineNanos) throws Exception {
+            List<Mino> rootPositions = game.getFinalMinoPositions();
+            Matrix rootQValues = this.agent.getQValues(game, rootPositions);
+            int bestRootIdx = 0;
+            for (int i = 1; i < rootPositions.size(); i++) {
+                if (rootQValues.get(i, 0) > rootQValues.get(bestRootIdx, 0)) {
+                    bestRootIdx = i;
+                }
+            }
+            this.lastDepth = 0;
+
+            int maxDepth = Math.min(MAX_DEPTH, game.getNextThreeMinoTypes().size() - 1);
+            List<Node> frontier = new ArrayList<Node>();
+            frontier.add(new Node(-1, 0, game, 0.0, 1.0, this.rewardWeights));
+            for (int depth = 1; depth <= maxDepth && System.nanoTime() < deadlineNanos; depth++) {
+                frontier = this.expand(frontier, deadlineNanos);
+                if (frontier == null || frontier.isEmpty()) {
+                    break;
+                }
+
+                int levelBestRootIdx = this.getBestRootIdx(frontier, deadlineNanos);
+                if (levelBestRootIdx < 0) {
+                    break;
+                }
+                bestRootIdx = levelBestRootIdx;
+                this.lastDepth = depth;
+            }
+            return rootPositions.get(bestRootIdx);
+        }
+
+        /**
+         * @return the next level (children in parent order, each parent's beam in cost order), or null if the
+         *         deadline passed first
+         */
+        private List<Node> expand(final List<Node> parents, final long deadlineNanos) {
+            // each worker sets its own index, invoke returning publishes them
+            final List<List<Node>> children = new ArrayList<List<Node>>(Collections.nCopies(parents.size(),
+                                                                                           (List<Node>) null));
+            ForkJoinPool.commonPool().invoke(new RangeTask(0, parents.size(), idx -> {
+                if (System.nanoTime() < deadlineNanos) {
+                    children.set(idx, this.expand(parents.get(idx)));
+                }
+            }));
+
+            List<Node> level = new ArrayList<Node>();
+            for (List<Node> beam : children) {
+                if (beam == null) {
+                    return null;
+                }
+                level.addAll(beam);
+            }
+            return level;
+        }
+
+        private List<Node> expand(final Node parent) {
+            SimulatedGame simulatedGame = this.simulatedGames.get();
+            List<Mino> positions = parent.view.getFinalMinoPositions();
+            double discount = Math.pow(this.gamma, parent.depth);
+            List<Node> beam = new ArrayList<Node>(positions.size());
+            for (int i = 0; i < positions.size(); i++) {
+                GameView child = simulatedGame.play(parent.view, positions.get(i));
+                if (child != null) {
+                    beam.add(new Node(parent.rootIdx < 0 ? i : parent.rootIdx, parent.depth + 1, child,
+                                      parent.discountedReturn, discount, this.rewardWeights));
+                }
+            }
+            // stable, so ties keep getFinalMinoPositions order
+            beam.sort((a, b) -> Double.compare(this.getHeuristicCost(a.profile), this.getHeuristicCost(b.profile)));
+            return beam.size() > this.beamWidth ? new ArrayList<Node>(beam.subList(0, this.beamWidth)) : beam;
+        }
+
+        /**
+         * One forward over every placement of every leaf.
+         *
+         * @return the root placement leading to the best backed up value (first one on ties), or -1 if the level
+         *         cannot finish before the deadline
+         */
+        private int getBestRootIdx(final List<Node> leaves, final long deadlineNanos) throws Exception {
+            final int[] firstRows = new int[leaves.size() + 1];
+            for (int i = 0; i < leaves.size(); i++) {
+                firstRows[i + 1] = firstRows[i] + leaves.get(i).view.getFinalMinoPositions().size();
+            }
+            int numRows = firstRows[leaves.size()];
+            if (System.nanoTime() + this.forwardNanosPerRow * numRows > deadlineNanos) {
+                return -1;
+            }
+
+            final Matrix inputs = Matrix.zeros(numRows, Board.NUM_ROWS * Board.NUM_COLS + 11);
+            final boolean[] written = new boolean[leaves.size()];
+            ForkJoinPool.commonPool().invoke(new RangeTask(0, leaves.size(), idx -> {
+                if (System.nanoTime() < deadlineNanos) {
+                    Node leaf = leaves.get(idx);
+                    List<Mino> positions = leaf.view.getFinalMinoPositions();
+                    for (int i = 0; i < positions.size(); i++) {
+                        this.agent.setQFunctionInput(inputs, firstRows[idx] + i, leaf.view, leaf.profile,
+                                                     positions.get(i));
+                    }
+                    written[idx] = true;
+                }
+            }));
+            for (boolean isWritten : written) {
+                if (!isWritten) {
+                    return -1;
+                }
+            }
+
+            long startNanos = System.nanoTime();
+            Matrix qValues = this.agent.forwardQFunction(inputs);
+            this.forwardNanosPerRow = (double) (System.nanoTime() - startNanos) / numRows;
+
+            int bestRootIdx = -1;
+            double bestValue = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < leaves.size(); i++) {
+                Node leaf = leaves.get(i);
+                double discount = Math.pow(this.gamma, leaf.depth);
+                for (int row = firstRows[i]; row < firstRows[i + 1]; row++) {
+                    double value = leaf.discountedReturn + discount * qValues.get(row, 0);
+                    if (value > bestValue || bestRootIdx < 0) {
+                        bestValue = value;
+                        bestRootIdx = leaf.rootIdx;
+                    }
+                }
+            }
+            return bestRootIdx;
+        }
+
+        // runs body for every idx in [from, to), splitting down to single indices
+        private static class RangeTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final int from;
+            private final int to;
+            private final IntConsumer body;
+
+            private RangeTask(int from, int to, IntConsumer body) {
+                this.from = from;
+                this.to = to;
+                this.body = body;
+            }
+
+            @Override
+            protected void compute() {
+                if (this.to - this.from <= 1) {
+                    if (this.to > this.from) {
+                        this.body.accept(this.from);
+                    }
+                    return;
+                }
+                int mid = (this.from + this.to) >>> 1;
+                invokeAll(new RangeTask(this.from, mid, this.body), new RangeTask(mid, this.to, this.body));
+            }
+        }
+    }
+
+    /**
+     * This method is used to decide if we should follow our current policy
+     * (i.e. our q-function), or if we should ignore it and take a random action
+     * (i.e. explore).
+     *
+     * Remember, as the q-function learns, it will start to predict the same "good" actions
+     * over and over again. This can prevent us from discovering new, potentially even
+     * better states, which we want to do! So, sometimes we should ignore our policy
+     * and explore to gain novel experiences.
+     *
+     * The decision (and the exploration move) is up to the ExplorationScheduler, -Dtetris.exploration picks one.
+     * By default it ignores the current policy EXPLORATION_PROB of the time, like the original coin flip.
+     */
+    
+    @Override
+    public boolean shouldExplore(final GameView game,
+                                final GameCounter gameCounter)
+    {
+        // getExplorationMove doesn't get the counter, the schedule needs it there too
+        this.explorationGameCounter = gameCounter;
+        boolean explore = this.getExplorationScheduler().shouldExplore(this, game, gameCounter);
+        if(this.getTelemetry() != null)
+        {
+            this.getTelemetry().addExploreCall(explore);
+        }
+        return explore;
+    }
+
+    /**
+     * This method is a counterpart to the "shouldExplore" method. Whenever we decide
+    * that we should ignore our policy, we now have to actually choose an action.
+    *
+    * You should come up with a way of choosing an action so that the model gets
+    * to experience something new. The ExplorationScheduler picks it: uniformly at random (epsilon), sampled from
+    * a softmax over the Q-values (boltzmann), or by Q-value plus a bonus for rarely seen boards (novelty).
+    */
+    @Override
+    public Mino getExplorationMove(final GameView game)
+    {
+        try
+        {
+            return this.getExplorationScheduler().getExplorationMove(this, game, this.explorationGameCounter);
+        } catch(Exception e)
+        {
+            e.printStackTrace();
+            System.exit(-1);
+            return null;
+        }
+    }
+
+    public static ExplorationScheduler newExplorationScheduler(String name)
+    {
+        switch(name.toLowerCase())
+        {
+            case "epsilon":
+                return new EpsilonGreedyScheduler(EPSILON_START, EPSILON_END, EXPLORATION_DECAY_PHASES);
+            case "boltzmann":
+                return new BoltzmannScheduler(BOLTZMANN_TEMPERATURE_START, BOLTZMANN_TEMPERATURE_END,
+                                              EXPLORATION_DECAY_PHASES);
+            case "novelty":
+                return new NoveltyScheduler(EPSILON_START, EPSILON_END, EXPLORATION_DECAY_PHASES, NOVELTY_BONUS,
+                                            NoveltyScheduler.DEFAULT_TABLE_BITS);
+            default:
+                throw new IllegalArgumentException("[ERROR] TetrisQAgent.newExplorationScheduler: unknown "
+                    + "exploration " + name + ", expected epsilon, boltzmann or novelty");
+        }
+    }
+
+    /**
+     * Decides when a training move explores and what it plays then. TrainerAgent asks shouldExplore once per
+     * training move and calls getExplorationMove (with the same view) only when it said yes. Schedules are driven
+     * by the GameCounter (see getPhaseProgress), which may be null outside of training.
+     *
+     * Read candidates and Q-values through agent.getCandidates / agent.getCandidateQValues: they are shared with
+     * getBestActionAndQValue, so looking at them costs no extra forward pass. ParallelTrainerAgent's self-play
+     * snapshots share their agent's scheduler, so implementations must be thread safe (use agent.getRandom()).
+     */
+    public static interface ExplorationScheduler
+    {
+        public boolean shouldExplore(TetrisQAgent agent, GameView game, GameCounter gameCounter);
+
+        public Mino getExplorationMove(TetrisQAgent agent, GameView game, GameCounter gameCounter) throws Exception;
+    }
+
+    /**
+     * @return phases completed so far, counting the current phase's training games as a fraction
+     */
+    public static double getPhaseProgress(GameCounter gameCounter)
+    {
+        if(gameCounter == null)
+        {
+            return 0.0;
+        }
+        double gameFraction = gameCounter.getNumTrainingGames() > 0
+            ? Math.min(1.0, (double)gameCounter.getCurrentGameIdx() / gameCounter.getNumTrainingGames()) : 0.0;
+        return gameCounter.getCurrentPhaseIdx() + gameFraction;
+    }
+
+    /**
+     * start at progress 0, end from progress decayPhases on, linear in between
+     */
+    public static double getLinearSchedule(double start, double end, int decayPhases, GameCounter gameCounter)
+    {
+        if(decayPhases <= 0)
+        {
+            return end;
+        }
+        double t = Math.min(1.0, getPhaseProgress(gameCounter) / decayPhases);
+        return start + (end - start) * t;
+    }
+
+    /**
+     * Explores with probability epsilon (decaying with the phase), and then plays a uniformly random candidate.
+     */
+    public static class EpsilonGreedyScheduler
+        extends Object
+        implements ExplorationScheduler
+    {
+        private final double epsilonStart;
+        private final double epsilonEnd;
+        private final int decayPhases;
+
+        public EpsilonGreedyScheduler(double epsilonStart, double epsilonEnd, int decayPhases)
+        {
+            this.epsilonStart = epsilonStart;
+            this.epsilonEnd = epsilonEnd;
+            this.decayPhases = decayPhases;
+        }
+
+        public double getEpsilon(GameCounter gameCounter)
+        {
+            return getLinearSchedule(this.epsilonStart, this.epsilonEnd, this.decayPhases, gameCounter);
+        }
+
+        @Override
+        public boolean shouldExplore(TetrisQAgent agent, GameView game, GameCounter gameCounter)
+        {
+            return agent.getRandom().nextDouble() <= this.getEpsilon(gameCounter);
+        }
+
+        @Override
+        public Mino getExplorationMove(TetrisQAgent agent, GameView game, GameCounter gameCounter)
+            throws Exception
+        {
+            List<Mino> positions = agent.getCandidates(game);
+            return positions.get(agent.getRandom().nextInt(positions.size()));
+        }
+    }
+
+    /**
+     * Every training move is sampled from softmax((Q - maxQ) / (T * spread)), spread being maxQ - minQ over the
+     * candidates, so T doesn't depend on the scale of the rewards: at T = 0.1 the best candidate is e^10 times as
+     * likely as the worst. T decays with the phase, towards greedy play.
+     */
+    public static class BoltzmannScheduler
+        extends Object
+        implements ExplorationScheduler
+    {
+        private final double temperatureStart;
+        private final double temperatureEnd;
+        private final int decayPhases;
+
+        public BoltzmannScheduler(double temperatureStart, double temperatureEnd, int decayPhases)
+        {
+            this.temperatureStart = temperatureStart;
+            this.temperatureEnd = temperatureEnd;
+            this.decayPhases = decayPhases;
+        }
+
+        public double getTemperature(GameCounter gameCounter)
+        {
+            return getLinearSchedule(this.temperatureStart, this.temperatureEnd, this.decayPhases, gameCounter);
+        }
+
+        @Override
+        public boolean shouldExplore(TetrisQAgent agent, GameView game, GameCounter gameCounter)
+        {
+            return true;
+        }
+
+        @Override
+        public Mino getExplorationMove(TetrisQAgent agent, GameView game, GameCounter gameCounter)
+            throws Exception
+        {
+            List<Mino> positions = agent.getCandidates(game);
+            Matrix qValues = agent.getCandidateQValues(game);
+
+            double maxQ = Double.NEGATIVE_INFINITY;
+            double minQ = Double.POSITIVE_INFINITY;
+            for(int i = 0; i < positions.size(); ++i)
+            {
+                maxQ = Math.max(maxQ, qValues.get(i, 0));
+                minQ = Math.min(minQ, qValues.get(i, 0));
+            }
+            double scale = Math.max(this.getTemperature(gameCounter), 1e-6) * Math.max(maxQ - minQ, 1e-12);
+
+            double[] weights = new double[positions.size()];
+            double total = 0.0;
+            for(int i = 0; i < positions.size(); ++i)
+            {
+                weights[i] = Math.exp((qValues.get(i, 0) - maxQ) / scale);
+                total += weights[i];
+            }
+
+            double u = agent.getRandom().nextDouble() * total;
+            for(int i = 0; i < positions.size(); ++i)
+            {
+                u -= weights[i];
+                if(u < 0.0)
+                {
+                    return positions.get(i);
+                }
+            }
+            return positions.get(positions.size() - 1);
+        }
+    }
+
+    /**
+     * Epsilon-greedy about when to explore, but an exploration move plays the candidate maximizing
+     *
+     *     (Q - minQ) / spread + bonus / sqrt(1 + N(board after the placement))
+     *
+     * where N counts how often each board has been seen at the start of a training move (every shouldExplore).
+     * Boards are keyed by a Zobrist hash of their occupied cells, into a direct-mapped table of 2^tableBits
+     * counters, so colliding boards share a count.
+     */
+    public static class NoveltyScheduler
+        extends EpsilonGreedyScheduler
+    {
+        public static final int DEFAULT_TABLE_BITS = 20;
+
+        private final double bonus;
+        private final int mask;
+        private final AtomicIntegerArray visitCounts;
+
+        public NoveltyScheduler(double epsilonStart, double epsilonEnd, int decayPhases, double bonus, int tableBits)
+        {
+            super(epsilonStart, epsilonEnd, decayPhases);
+            this.bonus = bonus;
+            this.mask = (1 << tableBits) - 1;
+            this.visitCounts = new AtomicIntegerArray(1 << tableBits);
+        }
+
+        public int getVisitCount(long boardKey) { return this.visitCounts.get((int)boardKey & this.mask); }
+
+        @Override
+        public boolean shouldExplore(TetrisQAgent agent, GameView game, GameCounter gameCounter)
+        {
+            long boardKey = QValueCache.hashOccupancy(agent.getBoardProfile(game));
+            this.visitCounts.incrementAndGet((int)boardKey & this.mask);
+            return super.shouldExplore(agent, game, gameCounter);
+        }
+
+        @Override
+        public Mino getExplorationMove(TetrisQAgent agent, GameView game, GameCounter gameCounter)
+            throws Exception
+        {
+            List<Mino> positions = agent.getCandidates(game);
+            Matrix qValues = agent.getCandidateQValues(game);
+            BoardProfile profile = agent.getBoardProfile(game);
+
+            double maxQ = Double.NEGATIVE_INFINITY;
+            double minQ = Double.POSITIVE_INFINITY;
+            for(int i = 0; i < positions.size(); ++i)
+            {
+                maxQ = Math.max(maxQ, qValues.get(i, 0));
+                minQ = Math.min(minQ, qValues.get(i, 0));
+            }
+            double spread = Math.max(maxQ - minQ, 1e-12);
+
+            Mino best = null;
+            double bestScore = Double.NEGATIVE_INFINITY;
+            for(int i = 0; i < positions.size(); ++i)
+            {
+                // keyed like shouldExplore keys the next move's board, after the lines clear
+                int count = this.getVisitCount(QValueCache.hashOccupancy(profile, positions.get(i)));
+                double score = (qValues.get(i, 0) - minQ) / spread + this.bonus / Math.sqrt(1.0 + count);
+                if(score > bestScore)
+                {
+                    bestScore = score;
+                    best = positions.get(i);
+                }
+            }
+            return best;
+        }
+    }
+
+
+
+    /**
+     * This method is called by the TrainerAgent after we have played enough training games.
+     * In between the training section and the evaluation section of a phase, we need to use
+     * the exprience we've collected (from the training games) to improve the q-function.
+     *
+     * You don't really need to change this method unless you want to. All that happens
+     * is that we will use the experiences currently stored in the replay buffer to update
+     * our model. Updates (i.e. gradient descent updates) will be applied per minibatch
+     * (i.e. a subset of the entire dataset) rather than in a vanilla gradient descent manner
+     * (i.e. all at once)...this often works better and is an active area of research.
+     *
+     * Each pass through the data is called an epoch, and we will perform "numUpdates" amount
+     * of epochs in between the training and eval sections of each phase.
+     */
+    @Override
+    public void trainQFunction(Dataset dataset,
+                               LossFunction lossFunction,
+                               Optimizer optimizer,
+                               long numUpdates)
+    {
+        // nothing reads Q-values until training is over, so dropping them up front covers every update below
+        this.invalidateQValueCache();
+
+        long phaseIdx = ++this.numTrainQFunctionCalls;
+        Telemetry.EpochStats epochStats = null;
+        if(this.getTelemetry() != null)
+        {
+            this.getTelemetry().recordPhase(phaseIdx);
+            epochStats = new Telemetry.EpochStats();
+        }
+
+        if(NUM_TRAIN_THREADS > 1 && this.getQFunction() instanceof Sequential && this.trainer == null)
+        {
+            this.trainer = new DataParallelTrainer((Sequential)this.getQFunction(), this::initQFunction,
+                                                   NUM_TRAIN_SHARDS, NUM_TRAIN_THREADS);
+        }
+
+        PackedReplayBuffer buffer = this.getReplayBuffer();
+        if(buffer != null)
+        {
+            this.trainQFunctionPacked(buffer, (int)dataset.getBatchSize(), lossFunction, optimizer, numUpdates,
+                                      phaseIdx, epochStats);
+            return;
+        }
+
+        if(USE_PRIORITIZED_REPLAY && phaseIdx == 1)
+        {
+            System.out.println("[INFO] TetrisQAgent.trainQFunction: prioritized replay samples from the packed buffer"
+                + " src.pas.tetris.agents.ParallelTrainerAgent installs, training on the Dataset uniformly");
+        }
+
+        for(int epochIdx = 0; epochIdx < numUpdates; ++epochIdx)
+        {
+            if(epochStats != null)
+            {
+                epochStats.reset();
+            }
+            dataset.shuffle();
+            Iterator<Pair<Matrix, Matrix> > batchIterator = dataset.iterator();
+
+            while(batchIterator.hasNext())
+            {
+                Pair<Matrix, Matrix> batch = batchIterator.next();
+
+                try
+                {
+                    this.trainStep(batch.getFirst(), batch.getSecond(), null, lossFunction, optimizer, epochStats);
+                } catch(Exception e)
+                {
+                    e.printStackTrace();
+                    System.exit(-1);
+                }
+            }
+            if(epochStats != null)
+            {
+                this.getTelemetry().recordEpoch(phaseIdx, epochIdx, epochStats.getNumRows(), epochStats);
+            }
+        }
+    }
+
+    /**
+     * trainQFunction over a PackedReplayBuffer: minibatches are decoded straight from the packed rows, whose targets
+     * the buffer computed when the trainer asked it for training data.
+     *
+     * Uniform epochs make the same updates the framework's loop makes over the Dataset: the rows are shuffled in
+     * place every epoch with the trainer's Random (as Dataset.shuffle does), and batch k is rows
+     * [k * batchSize, min(k * (batchSize + 1), numRows)) of the shuffle, which is what Dataset.BatchIterator hands
+     * out for k in [0, ceil(numRows / batchSize)).
+     */
+    private void trainQFunctionPacked(PackedReplayBuffer buffer,
+                                      int batchSize,
+                                      LossFunction lossFunction,
+                                      Optimizer optimizer,
+                                      long numUpdates,
+                                      long phaseIdx,
+                                      Telemetry.EpochStats epochStats)
+    {
+        int numRows = buffer.size();
+        if(numRows == 0)
+        {
+            return;
+        }
+        PackedReplayStore store = buffer.getStore();
+        if(USE_PRIORITIZED_REPLAY)
+        {
+            this.trainQFunctionPrioritized(buffer, batchSize, lossFunction, optimizer, numUpdates, phaseIdx,
+                                           epochStats);
+            return;
+        }
+
+        int[] order = new int[numRows];
+        for(int rowIdx = 0; rowIdx < numRows; ++rowIdx)
+        {
+            order[rowIdx] = rowIdx;
+        }
+        long numBatches = (numRows + batchSize - 1) / batchSize;
+        for(int epochIdx = 0; epochIdx < numUpdates; ++epochIdx)
+        {
+            if(epochStats != null)
+            {
+                epochStats.reset();
+            }
+            for(int rowIdx = 0; rowIdx < numRows; ++rowIdx)
+            {
+                int swapIdx = buffer.getRandom().nextInt(rowIdx + 1);
+                int tmp = order[swapIdx];
+                order[swapIdx] = order[rowIdx];
+                order[rowIdx] = tmp;
+            }
+
+            for(long batchIdx = 0; batchIdx < numBatches; ++batchIdx)
+            {
+                int start = (int)(batchSize * batchIdx);
+                int end = (int)Math.min((batchSize + 1) * batchIdx, numRows);
+                if(end <= start)
+                {
+                    continue;   // an empty batch has no gradient
+                }
+
+                Matrix X = Matrix.zeros(end - start, store.getNumFeatures());
+                Matrix Y = Matrix.zeros(end - start, store.getNumTargets());
+                for(int rowIdx = start; rowIdx < end; ++rowIdx)
+                {
+                    store.decode(order[rowIdx], X, Y, rowIdx - start);
+                }
+                try
+                {
+                    this.trainStep(X, Y, null, lossFunction, optimizer, epochStats);
+                } catch(Exception e)
+                {
+                    e.printStackTrace();
+                    System.exit(-1);
+                }
+            }
+            if(epochStats != null)
+            {
+                this.getTelemetry().recordEpoch(phaseIdx, epochIdx, epochStats.getNumRows(), epochStats);
+            }
+        }
+    }
+
+    /**
+     * Same number of gradient updates per epoch as the uniform loop, but every minibatch is drawn from a
+     * PrioritizedReplay (proportional to each row's last TD error) over the buffer's rows instead of walking a fresh
+     * shuffle of them. The priorities belong to the buffer, so a row keeps its TD error from earlier calls until it
+     * is evicted. Sampled rows are decoded into the same two batch matrices every time.
+     */
+    private void trainQFunctionPrioritized(PackedReplayBuffer buffer,
+                                           int maxBatchSize,
+                                           LossFunction lossFunction,
+                                           Optimizer optimizer,
+                                           long numUpdates,
+                                           long phaseIdx,
+                                           Telemetry.EpochStats epochStats)
+    {
+        PackedReplayStore store = buffer.getStore();
+        PrioritizedReplay replay = buffer.getPriorities();
+
+        int batchSize = Math.min(maxBatchSize, replay.size());
+        long numBatchesPerEpoch = (replay.size() + batchSize - 1) / batchSize;
+        Matrix X = Matrix.zeros(batchSize, store.getNumFeatures());
+        Matrix Y = Matrix.zeros(batchSize, store.getNumTargets());
+        int[] sampleIdxs = new int[batchSize];
+        double[] weights = new double[batchSize];
+        double[] tdErrors = new double[batchSize];
+
+        for(int epochIdx = 0; epochIdx < numUpdates; ++epochIdx)
+        {
+            // anneal the importance-sampling correction towards 1 over the call
+            double beta = PrioritizedReplay.BETA_START
+                + (1.0 - PrioritizedReplay.BETA_START) * (epochIdx + 1) / numUpdates;
+            if(epochStats != null)
+            {
+                epochStats.reset();
+            }
+
+            for(long batchIdx = 0; batchIdx < numBatchesPerEpoch; ++batchIdx)
+            {
+                try
+                {
+                    replay.sample(this.getRandom(), beta, sampleIdxs, weights);
+                    for(int rowIdx = 0; rowIdx < batchSize; ++rowIdx)
+                    {
+                        store.decode(sampleIdxs[rowIdx], X, Y, rowIdx);
+                    }
+                    Matrix YHat = this.trainStep(X, Y, weights, lossFunction, optimizer, epochStats);
+
+                    for(int rowIdx = 0; rowIdx < batchSize; ++rowIdx)
+                    {
+                        tdErrors[rowIdx] = 0.0;
+                        for(int colIdx = 0; colIdx < store.getNumTargets(); ++colIdx)
+                        {
+                            tdErrors[rowIdx] += Math.abs(YHat.get(rowIdx, colIdx) - Y.get(rowIdx, colIdx));
+                        }
+                    }
+                    replay.updatePriorities(sampleIdxs, tdErrors);
+                } catch(Exception e)
+                {
+                    e.printStackTrace();
+                    System.exit(-1);
+                }
+            }
+            if(epochStats != null)
+            {
+                this.getTelemetry().recordEpoch(phaseIdx, epochIdx, replay.size(), epochStats);
+            }
+        }
+    }
+
+    /**
+     * One gradient update on (X, Y). rowWeights (may be null) scales each row's loss gradient, which is how the
+     * prioritized replay's importance-sampling weights enter the update.
+     *
+     * @param epochStats collects the step's timings, loss and TD error for the telemetry, or null
+     * @return the q-function's predictions for X, from before the update
+     */
+    private Matrix trainStep(Matrix X, Matrix Y, double[] rowWeights, LossFunction lossFunction,
+                             Optimizer optimizer, Telemetry.EpochStats epochStats) throws Exception
+    {
+        if(this.trainer != null)
+        {
+            return this.trainer.step(X, Y, rowWeights, lossFunction, optimizer, epochStats);
+        }
+
+        long startNanos = epochStats != null ? System.nanoTime() : 0;
+        Matrix YHat = this.getQFunction().forward(X);
+        long forwardNanos = epochStats != null ? System.nanoTime() : 0;
+
+        optimizer.reset();
+        this.getQFunction().backwards(X, weightRows(lossFunction.backwards(YHat, Y), rowWeights));
+        optimizer.step();
+
+        if(epochStats != null)
+        {
+            epochStats.addForwardNanos(forwardNanos - startNanos);
+            epochStats.addBackwardNanos(System.nanoTime() - forwardNanos);
+            epochStats.addBatch(YHat, Y, lossFunction);
+        }
+        return YHat;
+    }
+
+    public static Matrix weightRows(Matrix m, double[] rowWeights)
+    {
+        if(rowWeights != null)
+        {
+            for(int rowIdx = 0; rowIdx < m.getShape().getNumRows(); ++rowIdx)
+            {
+                for(int colIdx = 0; colIdx < m.getShape().getNumCols(); ++colIdx)
+                {
+                    m.set(rowIdx, colIdx, m.get(rowIdx, colIdx) * rowWeights[rowIdx]);
+                }
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Fixed slots of (features, target) rows in primitive arrays, for feature rows laid out like
+     * getQFunctionInput's: NUM_ROWS * NUM_COLS grayscale pixels followed by the engineered features.
+     *
+     * Pixels only take the values 0, BACKGROUND_BLOCK_VALUE and CURRENT_BLOCK_PLACEMENT_VALUE, so each is stored as
+     * a 2 bit code (220 pixels in 7 longs); the engineered features and the targets are small integers or low
+     * precision values and are stored as floats. That is 108 bytes per row (56 of pixels, 48 of features and 4 of
+     * target) instead of a 232-double Matrix row (~1.9 KB), and rows are only turned back into doubles when a
+     * minibatch is decoded into a Matrix. packBoard stores a Board's occupancy in the same 7 longs.
+     */
+    public static class PackedReplayStore
+        extends Object
+    {
+        public static final int NUM_PIXELS = Board.NUM_ROWS * Board.NUM_COLS;
+        public static final int BITS_PER_PIXEL = 2;
+        public static final int PIXELS_PER_WORD = Long.SIZE / BITS_PER_PIXEL;
+        public static final int WORDS_PER_BOARD = (NUM_PIXELS + PIXELS_PER_WORD - 1) / PIXELS_PER_WORD;
+
+        // pixel value by 2 bit code, code 3 is unused
+        private static final double[] PIXEL_VALUES = new double[]{
+            GameView.UNOCCUPIED_COORDINATE_VALUE,
+            GameView.BACKGROUND_BLOCK_VALUE,
+            GameView.CURRENT_BLOCK_PLACEMENT_VALUE,
+        };
+
+        private final int capacity;
+        private final int numFeatures;
+        private final int numExtraFeatures;
+        private final int numTargets;
+        private final long[] boards;    // [slot * WORDS_PER_BOARD + word]
+        private final float[] extras;   // [slot * numExtraFeatures + feature]
+        private final float[] targets;  // [slot * numTargets + target]
+
+        public PackedReplayStore(int capacity, int numFeatures, int numTargets)
+        {
+            if(numFeatures < NUM_PIXELS)
+            {
+                throw new IllegalArgumentException("[ERROR] PackedReplayStore: rows need at least " + NUM_PIXELS
+                    + " features but got " + numFeatures);
+            }
+            this.capacity = capacity;
+            this.numFeatures = numFeatures;
+            this.numExtraFeatures = numFeatures - NUM_PIXELS;
+            this.numTargets = numTargets;
+            this.boards = new long[capacity * WORDS_PER_BOARD];
+            this.extras = new float[capacity * this.numExtraFeatures];
+            this.targets = new float[capacity * numTargets];
+        }
+
+        public final int getCapacity() { return this.capacity; }
+        public final int getNumFeatures() { return this.numFeatures; }
+        public final int getNumTargets() { return this.numTargets; }
+
+        /**
+         * Packs the features in row xRow of X into slot.
+         */
+        public void setFeatures(int slot, Matrix X, int xRow)
+        {
+            int boardOffset = slot * WORDS_PER_BOARD;
+            Arrays.fill(this.boards, boardOffset, boardOffset + WORDS_PER_BOARD, 0L);
+            for(int pixelIdx = 0; pixelIdx < NUM_PIXELS; ++pixelIdx)
+            {
+                long code = encodePixel(X.get(xRow, pixelIdx));
+                this.boards[boardOffset + pixelIdx / PIXELS_PER_WORD] |=
+                    code << (BITS_PER_PIXEL * (pixelIdx % PIXELS_PER_WORD));
+            }
+            for(int featureIdx = 0; featureIdx < this.numExtraFeatures; ++featureIdx)
+            {
+                this.extras[slot * this.numExtraFeatures + featureIdx] = (float)X.get(xRow, NUM_PIXELS + featureIdx);
+            }
+        }
+
+        public void setTarget(int slot, int targetIdx, double target)
+        {
+            this.targets[slot * this.numTargets + targetIdx] = (float)target;
+        }
+
+        /**
+         * Writes the row in slot into row dstRow of dstX and dstY.
+         */
+        public void decode(int slot, Matrix dstX, Matrix dstY, int dstRow)
+        {
+            int boardOffset = slot * WORDS_PER_BOARD;
+            for(int wordIdx = 0; wordIdx < WORDS_PER_BOARD; ++wordIdx)
+            {
+                long word = this.boards[boardOffset + wordIdx];
+                int firstPixel = wordIdx * PIXELS_PER_WORD;
+                int lastPixel = Math.min(firstPixel + PIXELS_PER_WORD, NUM_PIXELS);
+                for(int pixelIdx = firstPixel; pixelIdx < lastPixel; ++pixelIdx, word >>>= BITS_PER_PIXEL)
+                {
+                    dstX.set(dstRow, pixelIdx, PIXEL_VALUES[(int)(word & 3L)]);
+                }
+            }
+            for(int featureIdx = 0; featureIdx < this.numExtraFeatures; ++featureIdx)
+            {
+                dstX.set(dstRow, NUM_PIXELS + featureIdx, this.extras[slot * this.numExtraFeatures + featureIdx]);
+            }
+            this.decodeTarget(slot, dstY, dstRow);
+        }
+
+        public void decodeTarget(int slot, Matrix dstY, int dstRow)
+        {
+            for(int targetIdx = 0; targetIdx < this.numTargets; ++targetIdx)
+            {
+                dstY.set(dstRow, targetIdx, this.targets[slot * this.numTargets + targetIdx]);
+            }
+        }
+
+        /**
+         * Packs board's occupied cells (as BACKGROUND_BLOCK_VALUE pixels, row by row) into words[offset, offset +
+         * WORDS_PER_BOARD).
+         */
+        public static void packBoard(Board board, long[] words, int offset)
+        {
+            Arrays.fill(words, offset, offset + WORDS_PER_BOARD, 0L);
+            for(int row = 0; row < Board.NUM_ROWS; ++row)
+            {
+                for(int col = 0; col < Board.NUM_COLS; ++col)
+                {
+                    if(board.isCoordinateOccupied(col, row))
+                    {
+                        int pixelIdx = row * Board.NUM_COLS + col;
+                        words[offset + pixelIdx / PIXELS_PER_WORD] |=
+                            1L << (BITS_PER_PIXEL * (pixelIdx % PIXELS_PER_WORD));
+                    }
+                }
+            }
+        }
+
+        public static boolean isOccupied(long[] words, int offset, int row, int col)
+        {
+            int pixelIdx = row * Board.NUM_COLS + col;
+            long word = words[offset + pixelIdx / PIXELS_PER_WORD] >>> (BITS_PER_PIXEL * (pixelIdx % PIXELS_PER_WORD));
+            return (word & 3L) != 0L;
+        }
+
+        private static long encodePixel(double value)
+        {
+            for(int code = 0; code < PIXEL_VALUES.length; ++code)
+            {
+                if(value == PIXEL_VALUES[code])
+                {
+                    return code;
+                }
+            }
+            throw new IllegalArgumentException("[ERROR] PackedReplayStore.encodePixel: " + value
+                + " is not a grayscale pixel value");
+        }
+    }
+
+    /**
+     * A ReplayBuffer that keeps its rows in a PackedReplayStore instead of a Matrix of doubles.
+     *
+     * ParallelTrainerAgent installs it in place of the framework's buffer and hands it to its TetrisQAgent.
+     * getTrainingData computes every row's Bellman target into the store, the same way the framework's buffer does,
+     * but returns an empty placeholder instead of copying the rows into Matrix form: the TetrisQAgent's
+     * trainQFunction ignores the Dataset it is passed and decodes minibatches from the store.
+     *
+     * Slots are filled and evicted exactly like the framework's ReplayBuffer (including its OLDEST order), with
+     * random drawing the RANDOM evictions and the uniform shuffles. Pass the trainer's Random so a fixed --seed
+     * repeats. With -Dtetris.replay=prioritized it also keeps every slot's priority for the whole run: a new sample
+     * starts at the largest priority seen so far and keeps the TD error of its last draw until it is evicted.
+     *
+     * Next states are packed as well: the board's occupancy in the store's 2 bit words, the piece to place and the
+     * preview as MinoType ordinals, and the two scores. getNextState rebuilds one into a GameView through a
+     * SimulatedGame (spawning the piece the way Game does), which only computeTargets needs. A slot is then 184
+     * bytes (the store's 108, 8 of reward, 56 of next board, 4 of types and 8 of scores), plus 32 for the priority
+     * trees when prioritized. A full 10000 slot buffer measured 182 bytes a slot on the heap, and ~2.9 KB when
+     * every slot kept its next GameView.
+     */
+    public static class PackedReplayBuffer
+        extends ReplayBuffer
+    {
+        // the piece to place and the three previewed after it
+        public static final int NUM_NEXT_MINO_TYPES = 4;
+        public static final byte NO_MINO_TYPE = -1;
+
+        private static final MinoType[] MINO_TYPES = MinoType.values();
+
+        private final int capacity;
+        private final Random random;
+        private final double[] rewards;
+        private final long[] nextBoards;        // [slot * WORDS_PER_BOARD + word], see PackedReplayStore.packBoard
+        private final byte[] nextMinoTypes;     // [slot * NUM_NEXT_MINO_TYPES + i], NO_MINO_TYPE after game over
+        private final int[] nextScores;         // [2 * slot] total score, [2 * slot + 1] score this turn
+        private final Block[][] occupiedBlocks; // [row][col], shared by every rebuilt board
+        private final Board nextBoard;
+        private final SimulatedGame simulatedGame;
+        private PackedReplayStore store;    // created on the first sample, once the row width is known
+        private final PrioritizedReplay priorities; // null unless USE_PRIORITIZED_REPLAY
+        private int size;
+        private int newestSampleIdx;
+
+        public PackedReplayBuffer(ReplacementType replacementType, int capacity, Random random)
+        {
+            // the superclass's own arrays are never used, keep them one row long
+            super(replacementType, 1);
+            this.capacity = capacity;
+            this.random = random;
+            this.rewards = new double[capacity];
+            this.nextBoards = new long[capacity * PackedReplayStore.WORDS_PER_BOARD];
+            this.nextMinoTypes = new byte[capacity * NUM_NEXT_MINO_TYPES];
+            this.nextScores = new int[2 * capacity];
+            this.occupiedBlocks = new Block[Board.NUM_ROWS][Board.NUM_COLS];
+            for(int row = 0; row < Board.NUM_ROWS; ++row)
+            {
+                for(int col = 0; col < Board.NUM_COLS; ++col)
+                {
+                    this.occupiedBlocks[row][col] = new Block(Color.GRAY, new Coordinate(col, row));
+                }
+            }
+            this.nextBoard = new Board();
+            this.simulatedGame = new SimulatedGame();
+            this.store = null;
+            this.priorities = USE_PRIORITIZED_REPLAY ? new PrioritizedReplay(capacity) : null;
+            this.size = 0;
+            this.newestSampleIdx = -1;
+        }
+
+        public final int getCapacity() { return this.capacity; }
+        public final Random getRandom() { return this.random; }
+        public PackedReplayStore getStore() { return this.store; }
+        public PrioritizedReplay getPriorities() { return this.priorities; }
+
+        @Override
+        public int size() { return this.size; }
+
+        @Override
+        public void addSample(Matrix pastStateAndAction, double reward, GameView nextState)
+        {
+            if(this.store == null)
+            {
+                this.store = new PackedReplayStore(this.getCapacity(), pastStateAndAction.getShape().getNumCols(), 1);
+            }
+
+            int slot = this.size();
+            if(slot >= this.getCapacity())
+            {
+                slot = this.getReplacementType() == ReplacementType.RANDOM
+                    ? this.getRandom().nextInt(this.getCapacity())
+                    : (this.newestSampleIdx + 1) % this.getCapacity();
+            }
+            this.getStore().setFeatures(slot, pastStateAndAction, 0);
+            this.rewards[slot] = reward;
+            this.setNextState(slot, nextState);
+            if(this.getPriorities() != null)
+            {
+                this.getPriorities().add(slot);
+            }
+
+            if(this.size() < this.getCapacity())
+            {
+                this.size++;
+            }
+            if(this.getReplacementType() == ReplacementType.OLDEST)
+            {
+                this.newestSampleIdx = (slot + 1) % this.getCapacity();
+            }
+        }
+
+        /**
+         * The next state of slot, rebuilt into a new GameView, or null if the game ended there. Uses one
+         * SimulatedGame, so not thread safe.
+         */
+        public GameView getNextState(int slot)
+        {
+            int typeOffset = slot * NUM_NEXT_MINO_TYPES;
+            if(this.nextMinoTypes[typeOffset] == NO_MINO_TYPE)
+            {
+                return null;
+            }
+
+            int boardOffset = slot * PackedReplayStore.WORDS_PER_BOARD;
+            Block[][] cells = this.nextBoard.getBoard();
+            for(int row = 0; row < Board.NUM_ROWS; ++row)
+            {
+                for(int col = 0; col < Board.NUM_COLS; ++col)
+                {
+                    cells[row][col] = PackedReplayStore.isOccupied(this.nextBoards, boardOffset, row, col)
+                        ? this.occupiedBlocks[row][col] : null;
+                }
+            }
+            List<MinoType> preview = new ArrayList<MinoType>(NUM_NEXT_MINO_TYPES - 1);
+            for(int i = 1; i < NUM_NEXT_MINO_TYPES && this.nextMinoTypes[typeOffset + i] != NO_MINO_TYPE; ++i)
+            {
+                preview.add(MINO_TYPES[this.nextMinoTypes[typeOffset + i]]);
+            }
+            return this.simulatedGame.spawn(this.nextBoard, MINO_TYPES[this.nextMinoTypes[typeOffset]], preview,
+                                            this.nextScores[2 * slot], this.nextScores[2 * slot + 1]);
+        }
+
+        private void setNextState(int slot, GameView nextState)
+        {
+            int typeOffset = slot * NUM_NEXT_MINO_TYPES;
+            Arrays.fill(this.nextMinoTypes, typeOffset, typeOffset + NUM_NEXT_MINO_TYPES, NO_MINO_TYPE);
+            if(nextState == null || nextState.getFinalMinoPositions().isEmpty())
+            {
+                return;
+            }
+
+            int boardOffset = slot * PackedReplayStore.WORDS_PER_BOARD;
+            PackedReplayStore.packBoard(nextState.getBoard(), this.nextBoards, boardOffset);
+            this.nextMinoTypes[typeOffset] = (byte)nextState.getFinalMinoPositions().get(0).getType().ordinal();
+            List<MinoType> preview = nextState.getNextThreeMinoTypes();
+            for(int i = 0; i < preview.size(); ++i)
+            {
+                this.nextMinoTypes[typeOffset + 1 + i] = (byte)preview.get(i).ordinal();
+            }
+            this.nextScores[2 * slot] = nextState.getTotalScore();
+            this.nextScores[2 * slot + 1] = nextState.getScoreThisTurn();
+        }
+
+        @Override
+        public Matrix getGroundTruth(QAgent qAgent, double gamma)
+        {
+            this.computeTargets(qAgent, gamma);
+            Matrix Y = Matrix.zeros(this.size(), 1);
+            for(int slot = 0; slot < this.size(); ++slot)
+            {
+                this.getStore().decodeTarget(slot, Y, slot);
+            }
+            return Y;
+        }
+
+        /**
+         * Computes every row's target into the store and returns two 0-row matrices, see the class comment.
+         */
+        @Override
+        public Pair<Matrix, Matrix> getTrainingData(QAgent qAgent, double gamma)
+        {
+            this.computeTargets(qAgent, gamma);
+            int numFeatures = this.getStore() == null ? 0 : this.getStore().getNumFeatures();
+            return new Pair<Matrix, Matrix>(Matrix.zeros(0, numFeatures), Matrix.zeros(0, 1));
+        }
+
+        // reward + gamma * max_a' Q(s', a'), or just the reward when the game ended
+        private void computeTargets(QAgent qAgent, double gamma)
+        {
+            try
+            {
+                for(int slot = 0; slot < this.size(); ++slot)
+                {
+                    double target = this.rewards[slot];
+                    GameView nextState = this.getNextState(slot);
+                    if(nextState != null)
+                    {
+                        target += gamma * qAgent.getBestActionAndQValue(nextState).getSecond();
+                    }
+                    this.getStore().setTarget(slot, 0, target);
+                }
+            } catch(Exception e)
+            {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+        }
+    }
+
+    /**
+     * Proportional prioritized experience replay over the slots of a PackedReplayStore (the replay only keeps the
+     * priorities, the caller decodes the rows).
+     *
+     * Slot i is drawn with probability p_i^ALPHA / sum_j p_j^ALPHA, where p_i is its last absolute TD error (plus
+     * EPSILON so nothing starves). New rows start at the largest priority seen so every row is visited at least
+     * once. Draws are stratified (one per equal slice of the total mass) and cost O(log n) each through a sum-tree;
+     * a parallel min-tree gives the smallest probability, which normalizes the importance-sampling weights
+     * (n * P(i))^-beta to at most 1.
+     */
+    public static class PrioritizedReplay
+        extends Object
+    {
+        public static final double ALPHA = 0.6;
+        public static final double BETA_START = 0.4;
+        public static final double EPSILON = 1e-3;
+
+        private final int capacity;     // leaves, a power of two
+        private final double[] sumTree; // [1, 2 * capacity), node i has children 2i and 2i + 1
+        private final double[] minTree;
+        private double maxPriority;
+        private int size;
+
+        public PrioritizedReplay(int capacity)
+        {
+            int numLeaves = 1;
+            while(numLeaves < capacity)
+            {
+                numLeaves <<= 1;
+            }
+            this.capacity = numLeaves;
+            this.sumTree = new double[2 * numLeaves];
+            this.minTree = new double[2 * numLeaves];
+            Arrays.fill(this.minTree, Double.POSITIVE_INFINITY);
+            this.maxPriority = 1.0;
+            this.size = 0;
+        }
+
+        public int size() { return this.size; }
+        public double getTotalPriority() { return this.sumTree[1]; }
+        public double getPriority(int idx) { return this.sumTree[this.capacity + idx]; }
+        public double getMaxPriority() { return this.maxPriority; }
+
+        /**
+         * Slot idx was (over)written with a new row, which starts at the largest priority seen so far. Slots must first
+     * be filled in order 0, 1, 2, ...
+         */
+        public void add(int idx)
+        {
+            this.setPriority(idx, this.maxPriority);
+            this.size = Math.max(this.size, idx + 1);
+        }
+
+        /**
+         * Draws sampleIdxs.length slots and writes their importance-sampling weights into weights.
+         */
+        public void sample(Random random, double beta, int[] sampleIdxs, double[] weights)
+        {
+            int batchSize = sampleIdxs.length;
+            double total = this.getTotalPriority();
+            double segment = total / batchSize;
+            double maxWeight = Math.pow(this.size() * this.minTree[1] / total, -beta);
+
+            for(int rowIdx = 0; rowIdx < batchSize; ++rowIdx)
+            {
+                double mass = Math.min((rowIdx + random.nextDouble()) * segment, Math.nextDown(total));
+                int idx = this.find(mass);
+                sampleIdxs[rowIdx] = idx;
+                weights[rowIdx] = Math.pow(this.size() * this.getPriority(idx) / total, -beta) / maxWeight;
+            }
+        }
+
+        public void updatePriorities(int[] sampleIdxs, double[] tdErrors)
+        {
+            for(int rowIdx = 0; rowIdx < sampleIdxs.length; ++rowIdx)
+            {
+                double priority = Math.pow(Math.abs(tdErrors[rowIdx]) + EPSILON, ALPHA);
+                this.maxPriority = Math.max(this.maxPriority, priority);
+                this.setPriority(sampleIdxs[rowIdx], priority);
+            }
+        }
+
+        private void setPriority(int idx, double priority)
+        {
+            int node = this.capacity + idx;
+            this.sumTree[node] = priority;
+            this.minTree[node] = priority;
+            for(node >>= 1; node >= 1; node >>= 1)
+            {
+                this.sumTree[node] = this.sumTree[2 * node] + this.sumTree[2 * node + 1];
+                this.minTree[node] = Math.min(this.minTree[2 * node], this.minTree[2 * node + 1]);
+            }
+        }
+
+        // leaf whose prefix-sum interval contains mass
+        private int find(double mass)
+        {
+            int node = 1;
+            while(node < this.capacity)
+            {
+                if(mass < this.sumTree[2 * node] || this.sumTree[2 * node + 1] <= 0.0)
+                {
+                    node = 2 * node;
+                } else
+                {
+                    mass -= this.sumTree[2 * node];
+                    node = 2 * node + 1;
+                }
+            }
+            return Math.min(node - this.capacity, this.size() - 1);
+        }
+    }
+
+    /**
+     * Splits every minibatch into a fixed number of contiguous row shards, each with its own replica of the
+     * Q-function for the forward and backward pass, and runs the shards on a pool of worker threads.
+     *
+     * Sequential.backwards accumulates into the gradients, and the loss gradient is computed once over the whole
+     * minibatch (so e.g. MeanSquaredError still divides by the full batch size), which makes the sum of the
+     * replicas' gradients the gradient of the whole minibatch. The sum is taken in shard order on the calling
+     * thread before the single optimizer.step(). How rows are split only depends on the shard count and the
+     * minibatch size, never on the number of workers or cores, so for a fixed seed and shard count every run is
+     * bit-for-bit identical on any machine. (It is not bit-identical to the single threaded loop: the rows are
+     * summed in a different order.)
+     */
+    public static class DataParallelTrainer
+        extends Object
+    {
+        // below this many rows per shard the synchronization costs more than the matmuls save
+        public static final int MIN_ROWS_PER_SHARD = 8;
+
+        private final Sequential master;
+        private final Sequential[] replicas;    // one per shard
+        private final int numWorkers;
+        private final ExecutorService pool;
+
+        public DataParallelTrainer(Sequential master, Supplier<Model> modelFactory, int numShards, int numWorkers)
+        {
+            this.master = master;
+            this.replicas = new Sequential[Math.max(1, numShards)];
+            for(int shardIdx = 0; shardIdx < this.replicas.length; ++shardIdx)
+            {
+                this.replicas[shardIdx] = (Sequential)modelFactory.get();
+            }
+            this.numWorkers = Math.max(1, Math.min(numWorkers, this.replicas.length));
+            this.pool = Executors.newFixedThreadPool(this.numWorkers, r -> {
+                Thread t = new Thread(r, "tetris-trainer");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        public final Sequential getMaster() { return this.master; }
+        public int getNumShards() { return this.replicas.length; }
+        public int getNumWorkers() { return this.numWorkers; }
+
+        /**
+         * @param rowWeights scales each row's loss gradient, or null
+         * @param epochStats collects the step's timings, loss and TD error, or null
+         * @return the master's predictions for X, from before the update
+         */
+        public Matrix step(Matrix X, Matrix Y, double[] rowWeights, LossFunction lossFunction,
+                           Optimizer optimizer, Telemetry.EpochStats epochStats) throws Exception
+        {
+            final long startNanos = epochStats != null ? System.nanoTime() : 0;
+            final int numRows = X.getShape().getNumRows();
+            final int numCols = X.getShape().getNumCols();
+            final int numShards = Math.max(1, Math.min(this.getNumShards(), numRows / MIN_ROWS_PER_SHARD));
+
+            final int[] shardStarts = new int[numShards + 1];
+            for(int shardIdx = 0; shardIdx <= numShards; ++shardIdx)
+            {
+                shardStarts[shardIdx] = (int)((long)numRows * shardIdx / numShards);
+            }
+
+            List<Parameter> masterParams = this.master.getParameters();
+            final Matrix[] shards = new Matrix[numShards];
+            for(int shardIdx = 0; shardIdx < numShards; ++shardIdx)
+            {
+                shards[shardIdx] = X.getSlice(shardStarts[shardIdx], shardStarts[shardIdx + 1], 0, numCols);
+                copyValues(masterParams, this.replicas[shardIdx].getParameters());
+            }
+
+            // forward every shard, then compute the loss gradient over the whole minibatch
+            final Matrix[] shardYHats = new Matrix[numShards];
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(numShards);
+            for(int shardIdx = 0; shardIdx < numShards; ++shardIdx)
+            {
+                final int i = shardIdx;
+                tasks.add(() -> { shardYHats[i] = this.replicas[i].forward(shards[i]); return null; });
+            }
+            this.invokeAll(tasks);
+
+            Matrix YHat = Matrix.zeros(numRows, shardYHats[0].getShape().getNumCols());
+            for(int shardIdx = 0; shardIdx < numShards; ++shardIdx)
+            {
+                YHat.copySlice(shardStarts[shardIdx], shardStarts[shardIdx + 1], 0, YHat.getShape().getNumCols(),
+                               shardYHats[shardIdx]);
+            }
+            final long forwardNanos = epochStats != null ? System.nanoTime() : 0;
+            final Matrix dLdYHat = weightRows(lossFunction.backwards(YHat, Y), rowWeights);
+
+            tasks.clear();
+            for(int shardIdx = 0; shardIdx < numShards; ++shardIdx)
+            {
+                final int i = shardIdx;
+                tasks.add(() -> {
+                    for(Parameter param : this.replicas[i].getParameters())
+                    {
+                        param.reset();
+                    }
+                    this.replicas[i].backwards(shards[i], dLdYHat.getSlice(shardStarts[i], shardStarts[i + 1], 0,
+                                                                             dLdYHat.getShape().getNumCols()));
+                    return null;
+                });
+            }
+            this.invokeAll(tasks);
+
+            // all-reduce in a fixed order so the result doesn't depend on which worker finished first
+            optimizer.reset();
+            for(int paramIdx = 0; paramIdx < masterParams.size(); ++paramIdx)
+            {
+                Matrix gradient = masterParams.get(paramIdx).getGradient();
+                for(int shardIdx = 0; shardIdx < numShards; ++shardIdx)
+                {
+                    gradient = gradient.add(this.replicas[shardIdx].getParameters().get(paramIdx).getGradient());
+                }
+                masterParams.get(paramIdx).setGradient(gradient);
+            }
+            optimizer.step();
+
+            if(epochStats != null)
+            {
+                epochStats.addForwardNanos(forwardNanos - startNanos);
+                epochStats.addBackwardNanos(System.nanoTime() - forwardNanos);
+                epochStats.addBatch(YHat, Y, lossFunction);
+            }
+            return YHat;
+        }
+
+        private void invokeAll(List<Callable<Void>> tasks) throws Exception
+        {
+            for(Future<Void> future : this.pool.invokeAll(tasks))
+            {
+                try
+                {
+                    future.get();
+                } catch(ExecutionException e)
+                {
+                    throw (e.getCause() instanceof Exception) ? (Exception)e.getCause() : e;
+                }
+            }
+        }
+
+        private static void copyValues(List<Parameter> src, List<Parameter> dst) throws Exception
+        {
+            for(int paramIdx = 0; paramIdx < src.size(); ++paramIdx)
+            {
+                Matrix value = src.get(paramIdx).getValue();
+                dst.get(paramIdx).getValue().copySlice(0, value.getShape().getNumRows(),
+                                                       0, value.getShape().getNumCols(), value);
+            }
+        }
+    }
+
+    /**
+     * This method is where you will devise your own reward signal. Remember, the larger
+     * the number, the more "pleasurable" it is to the model, and the smaller the number,
+     * the more "painful" to the model.
+     *
+     * This is where you get to tell the model how "good" or "bad" the game is.
+     * Since you earn points in this game, the reward should probably be influenced by the
+     * points, however this is not all. In fact, just using the points earned this turn
+     * is a **terrible** reward function, because earning points is hard!!
+     *
+     * I would recommend you to consider other ways of measuring "good"ness and "bad"ness
+     * of the game. For instance, the higher the stack of minos gets....generally the worse
+     * (unless you have a long hole waiting for an I-block). When you design a reward
+     * signal that is less sparse, you should see your model optimize this reward over time.
+     */
+    // BESTSUB.java's reward is -Dtetris.reward=bestsub
+    @Override
+    public double getReward(final GameView game) {
+        return getReward(game, this.getBoardProfile(game));
+    }
+
+    // the same reward for a profile built by the caller
+    public static double getReward(final GameView game, final BoardProfile profile) {
+        return REWARD_WEIGHTS.getReward(game, profile);
+    }
+
+    /**
+     * The weights of the terms of getReward:
+     *
+     *     score * scoreThisTurn - height * maxHeight - holes * numberOfHoles - bumpiness * bumpiness
+     *         - whiteSpace * (rows not one cell from full) + lineCompletion * 2^(NUM_COLS - 1) * (rows one cell from full)
+     *
+     * SHAPED is the reward this agent has been training with, BESTSUB the one of the best submission (BESTSUB.java),
+     * which only has the first four terms. -Dtetris.reward picks one, and -Dtetris.reward.score, .height, .holes,
+     * .bumpiness, .whiteSpace and .lineCompletion override single weights.
+     */
+    public static class RewardWeights {
+        public static final RewardWeights SHAPED = new RewardWeights(10.0, 0.2, 1.5, 0.5, 1.0, 1.0);
+        public static final RewardWeights BESTSUB = new RewardWeights(10.0, 5.0, 1.6, 4.0, 0.0, 0.0);
+
+        // 2^occupied of a row one cell short of clearing, the only rows the line completion term counts
+        public static final double NEARLY_FULL_ROW_VALUE = 1 << (Board.NUM_COLS - 1);
+
+        private final double score;
+        private final double height;
+        private final double holes;
+        private final double bumpiness;
+        private final double whiteSpace;
+        private final double lineCompletion;
+
+        public RewardWeights(double score, double height, double holes, double bumpiness, double whiteSpace,
+                             double lineCompletion) {
+            this.score = score;
+            this.height = height;
+            this.holes = holes;
+            this.bumpiness = bumpiness;
+            this.whiteSpace = whiteSpace;
+            this.lineCompletion = lineCompletion;
+        }
+
+        public static RewardWeights byName(String name) {
+            if ("shaped".equalsIgnoreCase(name)) {
+                return SHAPED;
+            } else if ("bestsub".equalsIgnoreCase(name)) {
+                return BESTSUB;
+            }
+            throw new IllegalArgumentException("[ERROR] RewardWeights.byName: unknown reward " + name
+                + ", expected shaped or bestsub");
+        }
+
+        public static RewardWeights fromProperties() {
+            RewardWeights base = byName(System.getProperty("tetris.reward", "shaped"));
+            return new RewardWeights(getWeight("score", base.score), getWeight("height", base.height),
+                                     getWeight("holes", base.holes), getWeight("bumpiness", base.bumpiness),
+                                     getWeight("whiteSpace", base.whiteSpace),
+                                     getWeight("lineCompletion", base.lineCompletion));
+        }
+
+        private static double getWeight(String term, double defaultValue) {
+            String value = System.getProperty("tetris.reward." + term);
+            return value == null ? defaultValue : Double.parseDouble(value);
+        }
+
+        public double getScoreWeight() { return this.score; }
+        public double getHeightWeight() { return this.height; }
+        public double getHolesWeight() { return this.holes; }
+        public double getBumpinessWeight() { return this.bumpiness; }
+        public double getWhiteSpaceWeight() { return this.whiteSpace; }
+        public double getLineCompletionWeight() { return this.lineCompletion; }
+
+        // the height, holes and bumpiness penalties, also the cost LookaheadSearch keeps its beams by (with its own
+        // weights)
+        public double getShapePenalty(final BoardProfile profile) {
+            return this.height * profile.getMaxHeight() + this.holes * profile.getNumberOfHoles()
+                + this.bumpiness * profile.getBumpiness();
+        }
+
+        public double getReward(final GameView game, final BoardProfile profile) {
+            int numNearlyFullRows = profile.getNumNearlyFullRows();
+            double penaltyForWhiteSpace = this.whiteSpace * (Board.NUM_ROWS - numNearlyFullRows);
+            double rewardForLineCompletion = this.lineCompletion * NEARLY_FULL_ROW_VALUE * numNearlyFullRows;
+            return this.score * game.getScoreThisTurn() - (this.getShapePenalty(profile) + penaltyForWhiteSpace)
+                + rewardForLineCompletion;
+        }
     }
 }
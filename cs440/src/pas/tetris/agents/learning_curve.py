@@ -1,13 +1,18 @@
 import argparse as ap
+import csv
 import matplotlib.pyplot as plt
 import numpy as np
 import os
 import re                           # regular expressions
+from typing import List, Tuple
 
 
 LINE_PREAMBLE = "[INFO] TrainerAgent.onGameEnd: After "
 LINE_POSTAMBLE = "phase(s), avg trajectory utility = "
 
+# first column of the header line src.pas.tetris.Telemetry writes (-Dtetris.telemetry=path)
+TELEMETRY_HEADER = "kind,"
+
 
 def load(path: str) -> np.ndarray:
     data: List[Tuple[int, float]] = list()
@@ -25,14 +30,64 @@ def load(path: str) -> np.ndarray:
     return np.array(data)
 
 
+def is_telemetry(path: str) -> bool:
+    with open(path, "r") as f:
+        return f.readline().startswith(TELEMETRY_HEADER)
+
+
+def load_telemetry(path: str, kind: str, columns: List[str]) -> np.ndarray:
+    """
+        (num_rows, len(columns)) array of the rows of one kind ("phase", "epoch" or "eval"), empty cells as nan.
+        Only the header at the top of the file is used: appended runs must share it.
+    """
+    data: List[List[float]] = list()
+    with open(path, "r") as f:
+        for row in csv.DictReader(f):
+            if row["kind"] == kind:
+                data.append([float(row[c]) if row[c] != "" else np.nan for c in columns])
+    return np.array(data).reshape(-1, len(columns))
+
+
+def plot_telemetry(path: str) -> None:
+    evals: np.ndarray = load_telemetry(path, "eval", ["phase", "eval_utility"])
+    phases: np.ndarray = load_telemetry(path, "phase", ["phase", "games_per_s", "decisions_per_s"])
+    epochs: np.ndarray = load_telemetry(path, "epoch", ["phase", "forward_ns", "backward_ns", "loss"])
+
+    fig, axes = plt.subplots(2, 2, figsize=(12, 8))
+    axes[0, 0].plot(evals[:, 0], evals[:, 1])
+    axes[0, 0].set_title("avg trajectory utility")
+
+    axes[0, 1].plot(phases[:, 0], phases[:, 1], label="games/s")
+    axes[0, 1].plot(phases[:, 0], phases[:, 2], label="decisions/s")
+    axes[0, 1].set_title("throughput")
+    axes[0, 1].legend()
+
+    axes[1, 0].plot(np.arange(epochs.shape[0]), epochs[:, 1] / 1e6, label="forward")
+    axes[1, 0].plot(np.arange(epochs.shape[0]), epochs[:, 2] / 1e6, label="backward + step")
+    axes[1, 0].set_title("ms per minibatch (by epoch)")
+    axes[1, 0].legend()
+
+    axes[1, 1].plot(np.arange(epochs.shape[0]), epochs[:, 3])
+    axes[1, 1].set_title("loss (by epoch)")
+
+    for ax in axes[0, :]:
+        ax.set_xlabel("phase")
+    plt.tight_layout()
+    plt.show()
+
+
 def main() -> None:
     parser = ap.ArgumentParser()
-    parser.add_argument("logfile", type=str, help="path to logfile containing eval outputs")
+    parser.add_argument("logfile", type=str, help="path to logfile containing eval outputs, or a telemetry csv")
     args = parser.parse_args()
 
     if not os.path.exists(args.logfile):
         raise Exception("ERROR: logfile [%s] does not exist!" % args.logfile)
 
+    if is_telemetry(args.logfile):
+        plot_telemetry(args.logfile)
+        return
+
     data: np.ndarray = load(args.logfile)
     plt.plot(data[:, 0], data[:, 1])
     plt.show()
@@ -40,4 +95,3 @@ def main() -> None:
 
 if __name__ == "__main__":
     main()
-